@@ -0,0 +1,334 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * B+Tree variant: internal nodes hold only separator keys (no values array at all) and every entry lives in a leaf.
+ * Leaves are doubly linked, so ordered scans are sequential walks along the leaf level.
+ * Child i of an internal node holds the keys k with separator[i-1] <= k < separator[i].
+ *
+ * Package-private, as the package exposes a single public IBTree implementation; created through BTree.newBPlusTree.
+ */
+class BPlusTree<K extends Comparable<K>, V> implements IOrderedBTree<K, V>, Iterable<Map.Entry<K, V>> {
+    private final int minimumDegree;
+    private final int maxKeys;
+    private final int minKeys;
+    private BTreeNode<K, V> root;
+
+    BPlusTree(int minimumDegree) {
+        if (minimumDegree < 2) LocalException.throwRunTimeErrorException();
+        this.minimumDegree = minimumDegree;
+        maxKeys = 2 * minimumDegree - 1;
+        minKeys = minimumDegree - 1;
+    }
+
+    @Override
+    public int getMinimumDegree() {
+        return minimumDegree;
+    }
+
+    @Override
+    public IBTreeNode<K, V> getRoot() {
+        return root;
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        InputChecker.checkNullValue(key, value);
+        Leaf<K, V> leaf = findLeafForInsert(key);
+        int i = leaf.findKey(key);
+        if (i < 0)
+            leaf.insertEntry(-i - 1, key, value);
+    }
+
+    @Override
+    public V search(K key) {
+        InputChecker.checkNullValue(key);
+        if (root == null) return null;
+        Leaf<K, V> leaf = findLeaf(key);
+        int i = leaf.findKey(key);
+        return i >= 0 ? leaf.getValue(i) : null;
+    }
+
+    @Override
+    public boolean delete(K key) {
+        InputChecker.checkNullValue(key);
+        if (root == null || !delete(root, key)) return false;
+        if (root.getNumOfKeys() == 0 && !root.isLeaf())
+            root = root.getChild(0);
+        return true;
+    }
+
+    /**
+     * Walks the leaf level.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> entries() {
+        return range(null, false, null, false);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return entries();
+    }
+
+    /**
+     * @param from the lower bound, null for none
+     * @param to   the upper bound, null for none
+     * @return a lazy ascending cursor over the entries between the bounds
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        if (root == null) return new LeafCursor<>(null, 0, null, false, false);
+        Leaf<K, V> leaf = from == null ? leftmostLeaf() : findLeaf(from);
+        int i = 0;
+        if (from != null) {
+            i = leaf.findKey(from);
+            i = i >= 0 ? (fromInclusive ? i : i + 1) : -i - 1;
+        }
+        return new LeafCursor<>(leaf, i, to, toInclusive, false);
+    }
+
+    /**
+     * Same range as {@link #range} walked from the upper bound down to the lower one.
+     */
+    public Iterator<Map.Entry<K, V>> descendingRange(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        if (root == null) return new LeafCursor<>(null, 0, null, false, true);
+        Leaf<K, V> leaf = to == null ? rightmostLeaf() : findLeaf(to);
+        int i = leaf.getNumOfKeys() - 1;
+        if (to != null) {
+            i = leaf.findKey(to);
+            i = i >= 0 ? (toInclusive ? i : i - 1) : -i - 2;
+        }
+        return new LeafCursor<>(leaf, i, from, fromInclusive, true);
+    }
+
+    /*
+    ======================================================================================================================
+    Descent helpers
+     */
+
+    private static <K extends Comparable<K>, V> int childIndex(BTreeNode<K, V> node, K key) {
+        int i = node.findKey(key);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    private Leaf<K, V> findLeaf(K key) {
+        BTreeNode<K, V> node = root;
+        while (!node.isLeaf())
+            node = node.getChild(childIndex(node, key));
+        return (Leaf<K, V>) node;
+    }
+
+    private Leaf<K, V> leftmostLeaf() {
+        BTreeNode<K, V> node = root;
+        while (!node.isLeaf())
+            node = node.getChild(0);
+        return (Leaf<K, V>) node;
+    }
+
+    private Leaf<K, V> rightmostLeaf() {
+        BTreeNode<K, V> node = root;
+        while (!node.isLeaf())
+            node = node.getChild(node.getNumOfChildren() - 1);
+        return (Leaf<K, V>) node;
+    }
+
+    /**
+     * Walks down once from the root, splitting full nodes on the way, and returns the leaf for the key.
+     * That leaf is never full.
+     */
+    private Leaf<K, V> findLeafForInsert(K key) {
+        if (root == null) {
+            root = new Leaf<>(minimumDegree);
+            return (Leaf<K, V>) root;
+        }
+        if (root.getNumOfKeys() == maxKeys) {
+            BTreeNode<K, V> newRoot = new BTreeNode<>(minimumDegree, false, false);
+            newRoot.insertChild(0, root);
+            root = newRoot;
+            split(root, 0);
+        }
+        BTreeNode<K, V> node = root;
+        while (!node.isLeaf()) {
+            int i = childIndex(node, key);
+            if (node.getChild(i).getNumOfKeys() == maxKeys) {
+                split(node, i);
+                if (key.compareTo(node.getKey(i)) >= 0) i++;
+            }
+            node = node.getChild(i);
+        }
+        return (Leaf<K, V>) node;
+    }
+
+    /**
+     * Splits the full child at idx. A leaf keeps its first t entries and a copy of the first key of the new leaf
+     * becomes the separator; an internal node moves its median up as in a B-Tree.
+     */
+    private void split(BTreeNode<K, V> parent, int idx) {
+        BTreeNode<K, V> target = parent.getChild(idx);
+        K separator;
+        BTreeNode<K, V> newNode;
+        if (target.isLeaf()) {
+            Leaf<K, V> left = (Leaf<K, V>) target;
+            Leaf<K, V> right = new Leaf<>(minimumDegree);
+            right.appendFrom(left, minimumDegree);
+            right.next = left.next;
+            if (left.next != null) left.next.previous = right;
+            left.next = right;
+            right.previous = left;
+            separator = right.getKey(0);
+            newNode = right;
+        } else {
+            newNode = new BTreeNode<>(minimumDegree, false, false);
+            newNode.appendFrom(target, minimumDegree);
+            separator = target.getKey(minimumDegree - 1);
+            target.removeEntry(minimumDegree - 1);
+        }
+        parent.insertEntry(idx, separator, null);
+        parent.insertChild(idx + 1, newNode);
+    }
+
+    /**
+     * Removes the key from the subtree of the given node in a single descent and rebalances on the way back up.
+     * Separators equal to a removed key are left in place, they still route correctly.
+     */
+    private boolean delete(BTreeNode<K, V> node, K key) {
+        if (node.isLeaf()) {
+            int i = node.findKey(key);
+            if (i < 0) return false;
+            node.removeEntry(i);
+            return true;
+        }
+        int i = childIndex(node, key);
+        if (!delete(node.getChild(i), key)) return false;
+        fixChild(node, i);
+        return true;
+    }
+
+    private void fixChild(BTreeNode<K, V> parent, int childIdx) {
+        BTreeNode<K, V> child = parent.getChild(childIdx);
+        if (child.getNumOfKeys() >= minKeys) return;
+        BTreeNode<K, V> left = childIdx > 0 ? parent.getChild(childIdx - 1) : null;
+        BTreeNode<K, V> right = childIdx < parent.getNumOfKeys() ? parent.getChild(childIdx + 1) : null;
+        if (left != null && left.getNumOfKeys() > minKeys) {
+            borrowFromLeftSibling(parent, childIdx, left, child);
+        } else if (right != null && right.getNumOfKeys() > minKeys) {
+            borrowFromRightSibling(parent, childIdx, child, right);
+        } else if (left != null) {
+            merge(parent, childIdx - 1);
+        } else {
+            merge(parent, childIdx);
+        }
+    }
+
+    private void borrowFromLeftSibling(BTreeNode<K, V> parent, int childIdx, BTreeNode<K, V> left, BTreeNode<K, V> child) {
+        int last = left.getNumOfKeys() - 1;
+        if (child.isLeaf()) {
+            child.insertEntry(0, left.getKey(last), left.getValue(last));
+            left.removeEntry(last);
+            parent.setEntry(childIdx - 1, child.getKey(0), null);
+        } else {
+            child.insertEntry(0, parent.getKey(childIdx - 1), null);
+            child.insertChild(0, left.getChild(last + 1));
+            parent.setEntry(childIdx - 1, left.getKey(last), null);
+            left.removeEntry(last);
+            left.removeChild(last + 1);
+        }
+    }
+
+    private void borrowFromRightSibling(BTreeNode<K, V> parent, int childIdx, BTreeNode<K, V> child, BTreeNode<K, V> right) {
+        if (child.isLeaf()) {
+            child.insertEntry(child.getNumOfKeys(), right.getKey(0), right.getValue(0));
+            right.removeEntry(0);
+            parent.setEntry(childIdx, right.getKey(0), null);
+        } else {
+            child.insertEntry(child.getNumOfKeys(), parent.getKey(childIdx), null);
+            child.insertChild(child.getNumOfChildren(), right.getChild(0));
+            parent.setEntry(childIdx, right.getKey(0), null);
+            right.removeEntry(0);
+            right.removeChild(0);
+        }
+    }
+
+    /**
+     * Merges the child at idx + 1 into the child at idx. Leaves simply concatenate and drop the separator,
+     * internal nodes pull it down between the two halves.
+     */
+    private void merge(BTreeNode<K, V> parent, int idx) {
+        BTreeNode<K, V> left = parent.getChild(idx);
+        BTreeNode<K, V> right = parent.getChild(idx + 1);
+        if (left.isLeaf()) {
+            Leaf<K, V> leftLeaf = (Leaf<K, V>) left;
+            Leaf<K, V> rightLeaf = (Leaf<K, V>) right;
+            leftLeaf.next = rightLeaf.next;
+            if (rightLeaf.next != null) rightLeaf.next.previous = leftLeaf;
+        } else {
+            left.insertEntry(left.getNumOfKeys(), parent.getKey(idx), null);
+        }
+        left.appendFrom(right, 0);
+        parent.removeEntry(idx);
+        parent.removeChild(idx + 1);
+    }
+
+    /**
+     * Leaf node, linked to its neighbours on the leaf level.
+     */
+    private static final class Leaf<K extends Comparable<K>, V> extends BTreeNode<K, V> {
+        private Leaf<K, V> previous;
+        private Leaf<K, V> next;
+
+        Leaf(int minimumDegree) {
+            super(minimumDegree, true);
+        }
+    }
+
+    /**
+     * Walks the leaf level from a starting slot until the end bound, in either direction.
+     */
+    private static final class LeafCursor<K extends Comparable<K>, V> implements Iterator<Map.Entry<K, V>> {
+        private final K end;
+        private final boolean endInclusive;
+        private final boolean descending;
+        private Leaf<K, V> leaf;
+        private int index;
+
+        LeafCursor(Leaf<K, V> leaf, int index, K end, boolean endInclusive, boolean descending) {
+            this.leaf = leaf;
+            this.index = index;
+            this.end = end;
+            this.endInclusive = endInclusive;
+            this.descending = descending;
+            skipExhaustedLeaves();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (leaf == null) return false;
+            if (end == null) return true;
+            int cmp = leaf.getKey(index).compareTo(end);
+            if (descending) cmp = -cmp;
+            return cmp < 0 || (cmp == 0 && endInclusive);
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<>(leaf.getKey(index), leaf.getValue(index));
+            index += descending ? -1 : 1;
+            skipExhaustedLeaves();
+            return entry;
+        }
+
+        private void skipExhaustedLeaves() {
+            while (leaf != null && (index < 0 || index >= leaf.getNumOfKeys())) {
+                leaf = descending ? leaf.previous : leaf.next;
+                if (leaf != null)
+                    index = descending ? leaf.getNumOfKeys() - 1 : 0;
+            }
+        }
+    }
+}
@@ -1,12 +1,36 @@
 package eg.edu.alexu.csd.filestructure.btree;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class BTree<K extends Comparable<K>, V> implements IBTree<K, V> {
+public class BTree<K extends Comparable<K>, V> implements IOrderedBTree<K, V>, Iterable<Map.Entry<K, V>> {
     private int minimumDegree; // t
-    private IBTreeNode<K, V> root;
+    private BTreeNode<K, V> root;
     private int maxKeys; /*maximum keys in a node */
     private int minKeys;
+    /* snapshots reject every modification */
+    private boolean readOnly;
+    /* String keyed trees built by withPrefixCompressedKeys keep their keys in PrefixKeyNodes */
+    private boolean prefixCompressedKeys;
+    /* null unless built by withKeyNormalizer */
+    private KeyNormalizer<K> keyNormalizer;
+    /* trees built by withOrderStatistics keep the size of every subtree in its root node */
+    private boolean orderStatistics;
+    /* trees built by withAppendOptimization keep a finger on their rightmost path, root first, between appends */
+    private boolean appendOptimized;
+    private List<BTreeNode<K, V>> finger;
+    /* the separator on the left of the finger leaf, null if there is none */
+    private K fingerLow;
+    /* the nodes a deletion went through and the child it took in each, reused from one deletion to the next */
+    private BTreeNode<K, V>[] path = BTreeNode.newArray(8);
+    private int[] pathIndexes = new int[8];
     BTreeUtility<K, V> treeUtility;
 
     public BTree(int minimumDegree) {
@@ -17,184 +41,1045 @@ public class BTree<K extends Comparable<K>, V> implements IBTree<K, V> {
         treeUtility = new BTreeUtility<>(this);
     }
 
+    /**
+     * A String keyed tree whose nodes store the prefix their keys share once and the rest of each key as bytes,
+     * which takes much less memory for keys with long common prefixes, such as the words of a dictionary.
+     * Searches compare against the prefix first and never allocate; getting a key out of a node decodes a new String.
+     */
+    public static <V> BTree<String, V> withPrefixCompressedKeys(int minimumDegree) {
+        BTree<String, V> tree = new BTree<>(minimumDegree);
+        tree.prefixCompressedKeys = true;
+        return tree;
+    }
+
+    /**
+     * A tree whose nodes keep the normalized form of each key, comparing those longs during descents and calling
+     * compareTo only when they are equal.
+     * @param keyNormalizer see {@link KeyNormalizers} for the common key types
+     */
+    public static <K extends Comparable<K>, V> BTree<K, V> withKeyNormalizer(int minimumDegree, KeyNormalizer<K> keyNormalizer) {
+        InputChecker.checkNullValue(keyNormalizer);
+        BTree<K, V> tree = new BTree<>(minimumDegree);
+        tree.keyNormalizer = keyNormalizer;
+        return tree;
+    }
+
+    /**
+     * A tree whose nodes also keep the number of entries in their subtree, which makes {@link #rank}, {@link #select},
+     * {@link #countRange} and {@link #size} take O(t log n) instead of a traversal.
+     * Modifications pay O(t) more per level to keep the counts up to date.
+     */
+    public static <K extends Comparable<K>, V> BTree<K, V> withOrderStatistics(int minimumDegree) {
+        BTree<K, V> tree = new BTree<>(minimumDegree);
+        tree.orderStatistics = true;
+        return tree;
+    }
+
+    /**
+     * A tree for keys inserted mostly in ascending order, such as timestamps or sequence numbers.
+     * It keeps a finger on its rightmost leaf: a key above the separator on the left of that leaf goes straight into
+     * it without a descent, and a key above all the others that finds it full splits it unevenly, the leaf keeping
+     * 2t-2 keys and the key starting a new rightmost leaf, and so on up the rightmost path. Ascending inserts then
+     * cost about the same whatever the size of the tree, and leave the nodes nearly full instead of half full.
+     * While the finger is kept the nodes of the rightmost path may have less than t-1 keys. Anything else that
+     * modifies the tree, or a call to {@link #getRoot}, first rebalances them against their left siblings.
+     */
+    public static <K extends Comparable<K>, V> BTree<K, V> withAppendOptimization(int minimumDegree) {
+        BTree<K, V> tree = new BTree<>(minimumDegree);
+        tree.appendOptimized = true;
+        return tree;
+    }
+
+    /**
+     * A B+Tree: internal nodes hold only separator keys and every entry lives in a leaf, the leaves being linked
+     * so that ordered scans walk the leaf level. See {@link BPlusTree}.
+     */
+    public static <K extends Comparable<K>, V> IOrderedBTree<K, V> newBPlusTree(int minimumDegree) {
+        return new BPlusTree<>(minimumDegree);
+    }
+
+    /**
+     * A thread-safe tree for many concurrent readers and writers, latching nodes instead of the whole tree.
+     * See {@link ConcurrentBTree}.
+     * @param optimistic whether searches, inserts and deletes that need no restructuring validate node versions
+     *                   instead of taking read latches, which scales better when reads dominate
+     */
+    public static <K extends Comparable<K>, V> IBTree<K, V> newConcurrentTree(int minimumDegree, boolean optimistic) {
+        return new ConcurrentBTree<>(minimumDegree, optimistic);
+    }
+
+    /**
+     * A tree whose nodes are serialized into pages of direct buffers, outside the Java heap, so that the heap used
+     * and the garbage collector's work do not grow with the number of entries. See {@link PagedBTree}.
+     * @param pageSize     the size of a page in bytes; larger nodes continue in overflow pages
+     * @param pagesPerSlab the number of pages allocated at once
+     */
+    public static <K extends Comparable<K>, V> IPagedBTree<K, V> newOffHeapTree(int minimumDegree, int pageSize,
+                                                                              int pagesPerSlab,
+                                                                              Serializer<K> keySerializer,
+                                                                              Serializer<V> valueSerializer) {
+        return pagedTree(minimumDegree, new OffHeapPageStore(pageSize, pagesPerSlab), keySerializer, valueSerializer);
+    }
+
+    /**
+     * Opens the tree kept in the page file, creating the file if it does not exist; only a buffer pool of its pages
+     * is kept in memory. The minimum degree and page size must be the ones the file was created with.
+     * @param poolPages the number of pages kept in memory, at least 2
+     */
+    public static <K extends Comparable<K>, V> IPagedBTree<K, V> openPaged(Path file, int minimumDegree, int pageSize,
+                                                                         int poolPages, Serializer<K> keySerializer,
+                                                                         Serializer<V> valueSerializer) {
+        return pagedTree(minimumDegree, new FilePageStore(file, pageSize, poolPages), keySerializer, valueSerializer);
+    }
+
+    private static <K extends Comparable<K>, V> IPagedBTree<K, V> pagedTree(int minimumDegree, PageStore store,
+                                                                          Serializer<K> keySerializer,
+                                                                          Serializer<V> valueSerializer) {
+        try {
+            return new PagedBTree<>(minimumDegree, store, keySerializer, valueSerializer);
+        } catch (RuntimeException e) {
+            store.close();
+            throw e;
+        }
+    }
+
     @Override
     public int getMinimumDegree() {
         return minimumDegree;
     }
 
+    /**
+     * On a tree {@link #withAppendOptimization with append optimization} this first rebalances the rightmost path
+     * left short by appends, so it may restructure the tree even though it reads nothing but the root.
+     */
     @Override
-    public IBTreeNode<K, V> getRoot() {
+    public BTreeNode<K, V> getRoot() {
+        settleFinger();
         return root;
     }
 
     @Override
     public void insert(K key, V value) {
-        if (search(key) != null)
-            return;
+        putIfAbsent(key, value);
+    }
+
+    /**
+     * Associates the value with the key, replacing the current value if the key is already in the tree.
+     * @param key
+     * @param value
+     * @return the previous value, or null if the key was not in the tree
+     */
+    public V put(K key, V value) {
         InputChecker.checkNullValue(key, value);
-        if (getRoot() == null) {
-            root = new BTreeNode<>();
-            List<K> keys = new ArrayList<>();
-            keys.add(key);
-            List<V> values = new ArrayList<>();
-            values.add(value);
-            root.setKeys(keys);
-            root.setValues(values);
-            root.setLeaf(true);
-            root.setNumOfKeys(1);
+        BTreeNode<K, V> node = findSlot(key);
+        int i = node.findKey(key);
+        if (i >= 0) {
+            V previous = node.getValue(i);
+            node.setValue(i, value);
+            return previous;
+        }
+        node.insertEntry(-i - 1, key, value);
+        entryAdded(key);
+        return null;
+    }
+
+    /**
+     * Inserts the entry only if the key is not in the tree yet.
+     * @param key
+     * @param value
+     * @return the current value, or null if the entry was inserted
+     */
+    public V putIfAbsent(K key, V value) {
+        InputChecker.checkNullValue(key, value);
+        BTreeNode<K, V> node = findSlot(key);
+        int i = node.findKey(key);
+        if (i >= 0) return node.getValue(i);
+        node.insertEntry(-i - 1, key, value);
+        entryAdded(key);
+        return null;
+    }
+
+    /**
+     * Returns the value of the key, computing and inserting it first if the key is not in the tree.
+     * If the function returns null nothing is inserted. The function must not modify this tree.
+     * @param key
+     * @param mappingFunction
+     * @return the current or the computed value
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        InputChecker.checkNullValue(key, mappingFunction);
+        BTreeNode<K, V> node = findSlot(key);
+        int i = node.findKey(key);
+        if (i >= 0) return node.getValue(i);
+        V value = mappingFunction.apply(key);
+        if (value != null) {
+            node.insertEntry(-i - 1, key, value);
+            entryAdded(key);
+        }
+        return value;
+    }
+
+    /**
+     * Inserts the entry if the key is not in the tree, otherwise replaces the current value by
+     * remappingFunction(current, value). A null result removes the key, as in {@link Map#merge}.
+     * The function must not modify this tree.
+     * @param key
+     * @param value
+     * @param remappingFunction
+     * @return the new value, or null if the key was removed
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        InputChecker.checkNullValue(key, value, remappingFunction);
+        BTreeNode<K, V> node = findSlot(key);
+        int i = node.findKey(key);
+        if (i < 0) {
+            node.insertEntry(-i - 1, key, value);
+            entryAdded(key);
+            return value;
+        }
+        V merged = remappingFunction.apply(node.getValue(i), value);
+        if (merged == null) {
+            delete(key);
+            return null;
+        }
+        node.setValue(i, merged);
+        return merged;
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> entries() {
+        return new BTreeCursor<>(root, null, false, null, false, false);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return entries();
+    }
+
+    /**
+     * @param from          the lower bound, null for none
+     * @param fromInclusive
+     * @param to            the upper bound, null for none
+     * @param toInclusive
+     * @return a lazy ascending cursor over the entries between the bounds. The tree must not be modified while it is in use.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return new BTreeCursor<>(root, from, fromInclusive, to, toInclusive, false);
+    }
+
+    /**
+     * Same range as {@link #range} walked from the upper bound down to the lower one.
+     */
+    public Iterator<Map.Entry<K, V>> descendingRange(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return new BTreeCursor<>(root, from, fromInclusive, to, toInclusive, true);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return Spliterators.spliteratorUnknownSize(entries(), Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    /**
+     * @return a sequential stream over the entries in ascending key order
+     */
+    public Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Builds the tree bottom-up from entries sorted by strictly increasing key, without any search or split.
+     * Leaves are filled left to right, every entry that closes a node becomes the separator in the level above,
+     * and the internal levels are then built the same way from the separators.
+     * Only the last two nodes of each level may be rebalanced so that the last one keeps the minimum number of keys.
+     * The tree must be empty.
+     * @param sorted     the entries in strictly increasing key order
+     * @param fillFactor the share of the 2t-1 slots given to each node, in (0, 1]. Nodes never get less than t-1 keys.
+     */
+    public void bulkLoad(Iterator<Map.Entry<K, V>> sorted, double fillFactor) {
+        InputChecker.checkNullValue(sorted);
+        checkWritable();
+        if (!(fillFactor > 0 && fillFactor <= 1) || (getRoot() != null && getRoot().getNumOfKeys() > 0))
+            LocalException.throwRunTimeErrorException();
+        if (!sorted.hasNext()) return;
+        int keysPerNode = Math.max(minKeys, Math.min(maxKeys, (int) Math.round(fillFactor * maxKeys)));
+
+        List<BTreeNode<K, V>> level = new ArrayList<>();
+        List<K> separatorKeys = new ArrayList<>();
+        List<V> separatorValues = new ArrayList<>();
+        BTreeNode<K, V> leaf = newNode(true);
+        level.add(leaf);
+        K previous = null;
+        while (sorted.hasNext()) {
+            Map.Entry<K, V> entry = sorted.next();
+            K key = entry.getKey();
+            V value = entry.getValue();
+            InputChecker.checkNullValue(key, value);
+            if (previous != null && key.compareTo(previous) <= 0)
+                LocalException.throwRunTimeErrorException();
+            previous = key;
+            if (leaf.getNumOfKeys() == keysPerNode) {
+                separatorKeys.add(key);
+                separatorValues.add(value);
+                leaf = newNode(true);
+                level.add(leaf);
+            } else {
+                leaf.insertEntry(leaf.getNumOfKeys(), key, value);
+            }
+        }
+        balanceLastNode(level, separatorKeys, separatorValues);
+
+        while (level.size() > 1) {
+            List<BTreeNode<K, V>> parents = new ArrayList<>();
+            List<K> parentSeparatorKeys = new ArrayList<>();
+            List<V> parentSeparatorValues = new ArrayList<>();
+            BTreeNode<K, V> parent = newNode(false);
+            parents.add(parent);
+            parent.insertChild(0, level.get(0));
+            for (int i = 1; i < level.size(); i++) {
+                if (parent.getNumOfKeys() == keysPerNode) {
+                    parentSeparatorKeys.add(separatorKeys.get(i - 1));
+                    parentSeparatorValues.add(separatorValues.get(i - 1));
+                    parent = newNode(false);
+                    parents.add(parent);
+                } else {
+                    parent.insertEntry(parent.getNumOfKeys(), separatorKeys.get(i - 1), separatorValues.get(i - 1));
+                }
+                parent.insertChild(parent.getNumOfChildren(), level.get(i));
+            }
+            balanceLastNode(parents, parentSeparatorKeys, parentSeparatorValues);
+            level = parents;
+            separatorKeys = parentSeparatorKeys;
+            separatorValues = parentSeparatorValues;
+        }
+        root = level.get(0);
+        updateAllSubtreeSizes(root);
+    }
+
+    /**
+     * Gives the last node of a bulk loaded level at least minKeys keys, either by merging it into its left neighbour
+     * or by rotating entries (and children) through the separator between them, like borrowFromLeftSibling.
+     */
+    private void balanceLastNode(List<BTreeNode<K, V>> level, List<K> separatorKeys, List<V> separatorValues) {
+        int n = level.size();
+        BTreeNode<K, V> last = level.get(n - 1);
+        if (n == 1 || last.getNumOfKeys() >= minKeys) return;
+        BTreeNode<K, V> left = level.get(n - 2);
+        K separatorKey = separatorKeys.remove(n - 2);
+        V separatorValue = separatorValues.remove(n - 2);
+        if (left.getNumOfKeys() + 1 + last.getNumOfKeys() <= maxKeys) {
+            left.insertEntry(left.getNumOfKeys(), separatorKey, separatorValue);
+            left.appendFrom(last, 0);
+            level.remove(n - 1);
             return;
         }
-        if (getRoot().getKeys().size() == maxKeys) {
+        while (last.getNumOfKeys() < minKeys) {
+            last.insertEntry(0, separatorKey, separatorValue);
+            int largest = left.getNumOfKeys() - 1;
+            separatorKey = left.getKey(largest);
+            separatorValue = left.getValue(largest);
+            left.removeEntry(largest);
+            if (!left.isLeaf()) {
+                int lastChild = left.getNumOfChildren() - 1;
+                last.insertChild(0, left.getChild(lastChild));
+                left.removeChild(lastChild);
+            }
+        }
+        separatorKeys.add(separatorKey);
+        separatorValues.add(separatorValue);
+    }
+
+    /**
+     * Writes the tree to a compact read-only file, replacing it, for {@link #openFrozen} to map and read in place.
+     * @param file
+     * @param keySerializer   encodes the keys, the reader must use the same one
+     * @param valueSerializer encodes the values, the reader must use the same one
+     */
+    public void freeze(Path file, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        settleFinger();
+        FrozenBTree.write(root, minimumDegree, file, FrozenBTree.DEFAULT_PAGE_SIZE, keySerializer, valueSerializer);
+    }
+
+    /**
+     * Maps a file written by {@link #freeze} and answers from it in place, without loading it.
+     * The tree is read-only and safe for concurrent readers; see {@link FrozenBTree} for the format.
+     * @param keySerializer   the one the file was written with
+     * @param valueSerializer the one the file was written with
+     */
+    public static <K extends Comparable<K>, V> IOrderedBTree<K, V> openFrozen(Path file, Serializer<K> keySerializer,
+                                                                            Serializer<V> valueSerializer) {
+        return new FrozenBTree<>(file, keySerializer, valueSerializer);
+    }
+
+    /**
+     * Opens the durable tree kept in the directory, creating it if needed, and recovers whatever it held:
+     * mutations are logged before they return and replayed on the next opening. See {@link DurableBTree}.
+     * @param maxBatch           the number of queued log records that triggers a commit right away
+     * @param syncIntervalMillis the longest a log record stays queued before it is committed
+     * @param synchronousCommit  whether mutations wait for their log record to be on disk; without it a crash
+     *                           loses at most the last sync interval
+     */
+    public static <K extends Comparable<K>, V> IDurableBTree<K, V> openDurable(Path directory, int minimumDegree,
+                                                                             Serializer<K> keySerializer,
+                                                                             Serializer<V> valueSerializer,
+                                                                             int maxBatch, long syncIntervalMillis,
+                                                                             boolean synchronousCommit) {
+        return new DurableBTree<>(directory, minimumDegree, keySerializer, valueSerializer, maxBatch,
+                syncIntervalMillis, synchronousCommit);
+    }
+
+    /**
+     * Writes the tree to the stream in the binary format of {@link BTreeStreamFormat}, much smaller than the tree itself
+     * and fast to {@link #load}. The stream is flushed but not closed.
+     * @param keySerializer   encodes the keys, the reader must use the same one
+     * @param valueSerializer encodes the values, the reader must use the same one
+     */
+    public void save(OutputStream out, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        settleFinger();
+        BTreeStreamFormat.save(root, minimumDegree, out, keySerializer, valueSerializer);
+    }
+
+    /**
+     * Rebuilds the tree written by {@link #save} node by node, without inserting.
+     * The tree must be empty and have the minimum degree of the saved one. Reads a node at a time,
+     * so the stream should be buffered. The stream is not closed.
+     */
+    public void load(InputStream in, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        checkWritable();
+        if (getRoot() != null && getRoot().getNumOfKeys() > 0)
+            LocalException.throwRunTimeErrorException();
+        root = BTreeStreamFormat.load(in, this, keySerializer, valueSerializer);
+        updateAllSubtreeSizes(root);
+    }
+
+    /**
+     * Walks down once from the root as insertion does, splitting full nodes on the way.
+     * @return the node holding the key, or the leaf that should receive it. That leaf is never full.
+     */
+    private BTreeNode<K, V> findSlot(K key) {
+        checkWritable();
+        if (appendOptimized) {
+            BTreeNode<K, V> leaf = fingerSlot(key);
+            if (leaf != null) return leaf;
+        }
+        if (getRoot() == null) {
+            root = newNode(true);
+            return root;
+        }
+        root = root.thaw();
+        if (getRoot().getNumOfKeys() == maxKeys) {
             /*
             in this case we will add no keys in the root and we will call the "split" subroutine which will
             put the median element in the parent node ,namely the root
              */
-            IBTreeNode<K, V> newRoot = new BTreeNode<>();
-            List<IBTreeNode<K, V>> newRootChildren = new ArrayList<>();
-            newRootChildren.add(getRoot());
-            newRoot.setLeaf(false);
-            newRoot.setChildren(newRootChildren);
-            newRoot.setValues(new ArrayList<>());
-            newRoot.setKeys(new ArrayList<>());
-            newRoot.setNumOfKeys(1);
+            BTreeNode<K, V> newRoot = newNode(false);
+            newRoot.insertChild(0, getRoot());
             root = newRoot;
             split(root, 0);
         }
-        insertNonFull(root, key, value);
+        return findSlotNonFull(root, key);
     }
 
-    private void insertNonFull(IBTreeNode<K, V> node, K key, V value) {
-        List<K> keys = node.getKeys();
-        if (node.isLeaf()) {
-            treeUtility.addEntry(node, key, value);
-        } else {
-            int i = 0;
-            int n = node.getKeys().size();
-            while (i < n && key.compareTo(keys.get(i)) > 0)
-                i++;
-            if (node.getChildren().get(i).getKeys().size() == maxKeys) {
+    /**
+     * @return the finger leaf when the key belongs in it, after splitting it if it is full and the key is above all
+     * its keys, or null once the finger is settled for a key that must go through the usual descent
+     */
+    private BTreeNode<K, V> fingerSlot(K key) {
+        if (finger == null) takeFinger();
+        BTreeNode<K, V> leaf = finger.get(finger.size() - 1);
+        if (fingerLow == null || key.compareTo(fingerLow) > 0) {
+            int n = leaf.getNumOfKeys();
+            if (n < maxKeys) return leaf;
+            int cmp = key.compareTo(leaf.getKey(n - 1));
+            if (cmp == 0) return leaf;
+            if (cmp > 0) return appendSplit();
+        }
+        settleFinger();
+        return null;
+    }
+
+    /**
+     * Puts the finger on the rightmost path, copying the nodes shared with a snapshot.
+     */
+    private void takeFinger() {
+        if (root == null) root = newNode(true);
+        root = root.thaw();
+        finger = new ArrayList<>();
+        finger.add(root);
+        fingerLow = null;
+        BTreeNode<K, V> node = root;
+        while (!node.isLeaf()) {
+            fingerLow = node.getKey(node.getNumOfKeys() - 1);
+            node = writableChild(node, node.getNumOfChildren() - 1);
+            finger.add(node);
+        }
+    }
+
+    /**
+     * Splits the full finger leaf for a key above all its keys: its largest entry moves up and a new empty leaf
+     * takes its place on the rightmost path. A full parent is split the same way, keeping all its children but
+     * the last one, which goes to its new sibling with the new child.
+     * @return the new finger leaf
+     */
+    private BTreeNode<K, V> appendSplit() {
+        int level = finger.size() - 1;
+        BTreeNode<K, V> left = finger.get(level);
+        BTreeNode<K, V> right = newNode(true);
+        int last = left.getNumOfKeys() - 1;
+        K upKey = left.getKey(last);
+        V upValue = left.getValue(last);
+        left.removeEntry(last);
+        fingerLow = upKey;
+        while (true) {
+            updateSubtreeSize(left);
+            updateSubtreeSize(right);
+            finger.set(level, right);
+            if (level == 0) {
+                root = newNode(false);
+                root.insertChild(0, left);
+                root.insertEntry(0, upKey, upValue);
+                root.insertChild(1, right);
+                updateSubtreeSize(root);
+                finger.add(0, root);
+                break;
+            }
+            BTreeNode<K, V> parent = finger.get(--level);
+            int n = parent.getNumOfKeys();
+            if (n < maxKeys) {
+                parent.insertEntry(n, upKey, upValue);
+                parent.insertChild(n + 1, right);
+                updateSubtreeSize(parent);
+                break;
+            }
+            BTreeNode<K, V> sibling = newNode(false);
+            sibling.insertChild(0, left);
+            sibling.insertEntry(0, upKey, upValue);
+            sibling.insertChild(1, right);
+            parent.removeChild(n);
+            upKey = parent.getKey(n - 1);
+            upValue = parent.getValue(n - 1);
+            parent.removeEntry(n - 1);
+            left = parent;
+            right = sibling;
+        }
+        return finger.get(finger.size() - 1);
+    }
+
+    /**
+     * Drops the finger, first giving each node of the rightmost path t-1 keys again, from the bottom up, by rotating
+     * entries from its left sibling, which the uneven split that created the node left with 2t-2 keys.
+     * Should that sibling have no key to spare the two are merged instead, leaving the parent to the next level.
+     */
+    private void settleFinger() {
+        if (finger == null) return;
+        for (int level = finger.size() - 1; level > 0; level--) {
+            BTreeNode<K, V> parent = finger.get(level - 1);
+            int last = parent.getNumOfChildren() - 1;
+            while (parent.getChild(last).getNumOfKeys() < minKeys) {
+                if (!borrowFromLeftSibling(parent, last)) {
+                    fixChild(parent, last);
+                    break;
+                }
+            }
+        }
+        finger = null;
+        fingerLow = null;
+    }
+
+    /**
+     * Duplicates are detected on the way down, so there is no separate search before the descent.
+     */
+    private BTreeNode<K, V> findSlotNonFull(BTreeNode<K, V> node, K key) {
+        while (!node.isLeaf()) {
+            int i = node.findKey(key);
+            if (i >= 0) return node;
+            i = -i - 1;
+            if (node.getChild(i).getNumOfKeys() == maxKeys) {
                 split(node, i);
-                if (key.compareTo(keys.get(i)) > 0) i++;
+                int cmp = key.compareTo(node.getKey(i));
+                if (cmp == 0) return node;
+                if (cmp > 0) i++;
             }
-            insertNonFull(node.getChildren().get(i), key, value);
+            node = writableChild(node, i);
         }
+        return node;
     }
 
     @Override
     public V search(K key) {
         InputChecker.checkNullValue(key);
-        return searchHelper(getRoot(), key);
+        return searchHelper(root, key);
     }
 
-    private V searchHelper(IBTreeNode<K, V> node, K key) {
-        if (node == null || node.getKeys() == null)
-            return null;
-        int i = 0;
-        List<K> keys = node.getKeys();
-        while (i < node.getKeys().size() && key.compareTo(node.getKeys().get(i)) > 0) {
-            i++;
-        }
-        if (i < keys.size() && key.compareTo(node.getKeys().get(i)) == 0) {
-            return node.getValues().get(i);
-        } else if (node.isLeaf()) {
-            return null;
-        } else
-            return searchHelper(node.getChildren().get(i), key);
+    /**
+     * Looks all the keys up in one descent: the keys are sorted, and each node splits the ones that reach it among
+     * its children, so the nodes shared by several keys, the upper levels above all, are visited once per batch.
+     * @return the values of the keys in the order of the collection, null for the missing ones
+     */
+    public List<V> searchAll(Collection<K> keys) {
+        InputChecker.checkNullValue(keys);
+        List<K> input = new ArrayList<>(keys);
+        for (K key : input)
+            InputChecker.checkNullValue(key);
+        Integer[] order = new Integer[input.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> input.get(a).compareTo(input.get(b)));
+        List<K> sorted = new ArrayList<>(order.length);
+        for (Integer position : order)
+            sorted.add(input.get(position));
+        List<V> values = new ArrayList<>(Collections.nCopies(order.length, null));
+        if (root != null)
+            searchAll(root, sorted, 0, order.length, order, values);
+        return values;
+    }
+
+    /**
+     * Looks up sorted[from, to), all of which fall in the subtree of node.
+     */
+    private void searchAll(BTreeNode<K, V> node, List<K> sorted, int from, int to, Integer[] order, List<V> values) {
+        while (from < to) {
+            K key = sorted.get(from);
+            int i = node.findKey(key);
+            if (i >= 0) {
+                values.set(order[from++], node.getValue(i));
+                continue;
+            }
+            i = -i - 1;
+            if (node.isLeaf()) {
+                from++;
+                continue;
+            }
+            // the run of keys below the separator on the right of child i all go down to child i
+            int end = from + 1;
+            if (i < node.getNumOfKeys()) {
+                K separator = node.getKey(i);
+                while (end < to && sorted.get(end).compareTo(separator) < 0)
+                    end++;
+            } else {
+                end = to;
+            }
+            searchAll(node.getChild(i), sorted, from, end, order, values);
+            from = end;
+        }
+    }
+
+    /**
+     * Returns a read-only view of the tree as it is now, in O(1). The view and the tree share all their nodes;
+     * from then on the tree copies a shared node before modifying it (path copying), so the view never changes
+     * and the copies it holds on to are reclaimed once it is dropped.
+     * The view may be read by other threads while this tree keeps being modified.
+     * @return a BTree whose modifying methods throw
+     */
+    public BTree<K, V> snapshot() {
+        BTree<K, V> snapshot = emptyCopy();
+        settleFinger();
+        if (root != null) root.freeze();
+        snapshot.root = root;
+        snapshot.readOnly = true;
+        return snapshot;
+    }
+
+    /**
+     * @return an empty tree with the minimum degree and the options of this one
+     */
+    private BTree<K, V> emptyCopy() {
+        BTree<K, V> tree = new BTree<>(minimumDegree);
+        tree.prefixCompressedKeys = prefixCompressedKeys;
+        tree.keyNormalizer = keyNormalizer;
+        tree.orderStatistics = orderStatistics;
+        tree.appendOptimized = appendOptimized;
+        return tree;
+    }
+
+    private V searchHelper(BTreeNode<K, V> node, K key) {
+        while (node != null) {
+            int i = node.findKey(key);
+            if (i >= 0) return node.getValue(i);
+            node = node.isLeaf() ? null : node.getChild(-i - 1);
+        }
+        return null;
     }
 
 
     @Override
     public boolean delete(K key) {
         InputChecker.checkNullValue(key);
-        if (search(key) == null) return false;
-        delete(getRoot(), key);
+        checkWritable();
+        settleFinger();
+        if (getRoot() == null) return false;
+        root = root.thaw();
+        return delete(getRoot(), key);
+    }
+
+    /**
+     * Removes the key from the subtree of the given node in a single descent, recording the path in the path buffer.
+     * A key found in an internal node is replaced by its predecessor, and the descent goes on down to the leaf that
+     * held it. Nodes are then rebalanced once per level on the way back up, and only if the key was actually
+     * removed, so deleting a missing key leaves the tree untouched.
+     */
+    private boolean delete(BTreeNode<K, V> node, K key) {
+        int depth = 0;
+        int i = node.findKey(key);
+        while (i < 0 && !node.isLeaf()) {
+            i = -i - 1;
+            depth = push(depth, node, i);
+            node = writableChild(node, i);
+            i = node.findKey(key);
+        }
+        if (i < 0) {
+            Arrays.fill(path, 0, depth, null);
+            return false;
+        }
+        if (!node.isLeaf()) {
+            // replace the key by its predecessor, the largest entry of the left subtree, and remove that one
+            BTreeNode<K, V> target = node;
+            int slot = i;
+            int child = i;
+            do {
+                depth = push(depth, node, child);
+                node = writableChild(node, child);
+                child = node.getNumOfChildren() - 1;
+            } while (!node.isLeaf());
+            i = node.getNumOfKeys() - 1;
+            editEntry(target, node.getKey(i), node.getValue(i), slot);
+        }
+        node.removeEntry(i);
+        updateSubtreeSize(node);
+        while (depth > 0) {
+            BTreeNode<K, V> parent = path[--depth];
+            path[depth] = null;
+            fixChild(parent, pathIndexes[depth]);
+            updateSubtreeSize(parent);
+        }
         return true;
     }
 
-    private boolean delete(IBTreeNode<K, V> node, K key) {
-        if (node == null) return false;
-        int i = 0;
-        List<K> keys = node.getKeys();
-        int n = keys.size();
-        while (i < n && key.compareTo(keys.get(i)) > 0) {
-            i++;
+    /**
+     * Records the node and the index of the child the descent takes at the given depth.
+     * @return the next depth
+     */
+    private int push(int depth, BTreeNode<K, V> node, int childIdx) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, 2 * depth);
+            pathIndexes = Arrays.copyOf(pathIndexes, 2 * depth);
         }
-        if (i < n && key.compareTo(keys.get(i)) == 0) {
-            if (node.isLeaf()) {
-                return treeUtility.deleteEntry(node, key);
-            } else if (node.getChildren().get(i + 1).getKeys().size() > minKeys) {
-                IBTreeNode<K, V> successor = treeUtility.getSuccessor(node, i);
-                editEntry(node, successor.getKeys().get(0), successor.getValues().get(0), i);
-                return delete(node.getChildren().get(i + 1), successor.getKeys().get(0));
-            } else if (node.getChildren().get(i).getKeys().size() > minKeys) {
-                IBTreeNode<K, V> predecessor = treeUtility.getPredecessor(node, i);
-                int last = predecessor.getKeys().size() - 1;
-                editEntry(node, predecessor.getKeys().get(last), predecessor.getValues().get(last), i);
-                return delete(node.getChildren().get(i), predecessor.getKeys().get(last));
+        path[depth] = node;
+        pathIndexes[depth] = childIdx;
+        return depth + 1;
+    }
 
-            } else {
-                if (node == getRoot() && node.getKeys().size() == 1) {
-                    modifyStructure();
-                    return delete(getRoot(), key);
-                } else {
-                    treeUtility.merge(node, i);
-                    return delete(node, key);
-                }
+    /**
+     * Removes every key between the bounds, which work as in {@link #range}, in O(t log n) however many keys there
+     * are. The tree is split along the paths of the two keys just outside the range. The subtrees in between are
+     * dropped whole, and the two outer parts are joined back around those keys.
+     * @param from the lower bound, null for none
+     * @param to   the upper bound, null for none
+     */
+    public void deleteRange(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        checkWritable();
+        settleFinger();
+        if (root == null || !range(from, fromInclusive, to, toInclusive).hasNext()) return;
+        K low = from == null ? null : firstKey(descendingRange(null, false, from, !fromInclusive));
+        K high = to == null ? null : firstKey(range(to, !toInclusive, null, false));
+        if (low == null && high == null) {
+            root = null;
+            return;
+        }
+        Subtree<K, V> rest = new Subtree<>(root, height(root));
+        Subtree<K, V> kept = new Subtree<>(null, -1);
+        if (high != null) {
+            Split<K, V> upper = split(rest.node.thaw(), rest.height, high);
+            kept = join(kept, upper.key, upper.value, upper.right);
+            rest = upper.left;
+        }
+        if (low != null) {
+            Split<K, V> lower = split(rest.node.thaw(), rest.height, low);
+            kept = join(lower.left, lower.key, lower.value, kept);
+        }
+        root = kept.node;
+    }
+
+    /**
+     * Removes the keys of the set that are in the tree. Each run of them that follow each other in the tree goes with
+     * one {@link #deleteRange}, so a contiguous block costs a walk over its keys and O(t log n), not a deletion per key.
+     * @param keys sorted in their natural order
+     * @return the number of keys removed
+     */
+    public int deleteAll(SortedSet<K> keys) {
+        InputChecker.checkNullValue(keys);
+        checkWritable();
+        if (keys.comparator() != null) LocalException.throwRunTimeErrorException();
+        int removed = 0;
+        Iterator<K> it = keys.iterator();
+        K next = it.hasNext() ? it.next() : null;
+        while (next != null) {
+            Iterator<Map.Entry<K, V>> entries = range(next, true, null, false);
+            if (!entries.hasNext()) break;
+            K first = null;
+            K last = null;
+            while (entries.hasNext()) {
+                K key = entries.next().getKey();
+                while (next != null && next.compareTo(key) < 0)
+                    next = it.hasNext() ? it.next() : null;
+                // a key of the tree missing from the set ends the run
+                if (next == null || next.compareTo(key) != 0) break;
+                if (first == null) first = key;
+                last = key;
+                removed++;
+                next = it.hasNext() ? it.next() : null;
             }
+            if (first != null) deleteRange(first, true, last, true);
+        }
+        return removed;
+    }
 
+    /**
+     * Moves the keys from the given one on to a new tree, in O(t log n): the tree is cut along the path of the
+     * smallest of them and each side is joined back from the pieces, without copying any entry.
+     * @return a tree with the options of this one holding the keys greater or equal to the key,
+     * this tree keeping the smaller ones
+     */
+    public BTree<K, V> splitAt(K key) {
+        InputChecker.checkNullValue(key);
+        checkWritable();
+        settleFinger();
+        BTree<K, V> upper = emptyCopy();
+        K first = root == null ? null : firstKey(range(key, true, null, false));
+        if (first == null) return upper;
+        Split<K, V> split = split(root.thaw(), height(root), first);
+        root = split.left.node;
+        upper.root = join(new Subtree<>(null, -1), split.key, split.value, split.right).node;
+        return upper;
+    }
+
+    /**
+     * Moves all the entries of two trees into a new one in O(t log n), joining them around the smallest entry of
+     * right. Both trees must be writable, have the same minimum degree and options, and every key of left must be
+     * smaller than every key of right. They are both empty afterwards.
+     * @return a tree with the options of left holding the entries of both
+     */
+    public static <K extends Comparable<K>, V> BTree<K, V> concat(BTree<K, V> left, BTree<K, V> right) {
+        InputChecker.checkNullValue(left, right);
+        left.checkWritable();
+        right.checkWritable();
+        if (left == right || left.minimumDegree != right.minimumDegree || left.prefixCompressedKeys != right.prefixCompressedKeys
+                || left.keyNormalizer != right.keyNormalizer || left.orderStatistics != right.orderStatistics)
+            LocalException.throwRunTimeErrorException();
+        left.settleFinger();
+        right.settleFinger();
+        BTree<K, V> tree = left.emptyCopy();
+        K separatorKey = firstKey(right.entries());
+        if (separatorKey == null) {
+            tree.root = left.root;
+        } else if (left.root == null || left.root.getNumOfKeys() == 0) {
+            tree.root = right.root;
         } else {
-            if (node.isLeaf()) return false;
-            // the index of the next child is i
-            if (node.getChildren().get(i).getKeys().size() == minKeys) {
-                if (!borrowFromLeftSibling(node, i) && !borrowFromRightsibling(node, i)) {
-                    if (node == getRoot() && node.getKeys().size() == 1) {
-                        modifyStructure();
-                        return delete(getRoot(), key);
-                    } else {
-                        if (i == n)
-                            treeUtility.merge(node, i - 1);
-                        else
-                            treeUtility.merge(node, i);
-
-                        return delete(node, key);
-                    }
+            if (firstKey(left.descendingRange(null, false, null, false)).compareTo(separatorKey) >= 0)
+                LocalException.throwRunTimeErrorException();
+            V separatorValue = right.search(separatorKey);
+            right.delete(separatorKey);
+            Subtree<K, V> rest = right.root == null || right.root.getNumOfKeys() == 0
+                    ? new Subtree<>(null, -1) : new Subtree<>(right.root, height(right.root));
+            tree.root = tree.join(new Subtree<>(left.root, height(left.root)), separatorKey, separatorValue, rest).node;
+        }
+        left.root = null;
+        right.root = null;
+        return tree;
+    }
+
+    /**
+     * Adds the entries of the other tree to this one in O(n + m): both trees are walked in order with cursors, and this
+     * tree is rebuilt from the merged entries with {@link #bulkLoad}, its nodes filled completely.
+     * The other tree is not modified. If onConflict throws or returns null, this tree is left as it was.
+     * @param onConflict combines the value in this tree with the value in the other one for a key they both have
+     */
+    public void mergeFrom(BTree<K, V> other, BinaryOperator<V> onConflict) {
+        InputChecker.checkNullValue(other, onConflict);
+        checkWritable();
+        settleFinger();
+        BTree<K, V> merged = emptyCopy();
+        merged.bulkLoad(new MergingIterator<>(entries(), other.entries(), onConflict), 1);
+        root = merged.root;
+    }
+
+    private static <K> K firstKey(Iterator<? extends Map.Entry<K, ?>> entries) {
+        return entries.hasNext() ? entries.next().getKey() : null;
+    }
+
+    private static int height(BTreeNode<?, ?> node) {
+        int height = 0;
+        for (; !node.isLeaf(); node = node.getChild(0))
+            height++;
+        return height;
+    }
+
+    /**
+     * Splits the subtree of the node, which must not be shared with a snapshot, at the given height, around the key, which must be in it.
+     * The nodes on the path of the key are cut in two, and the pieces on each side are joined back
+     * from the bottom up with the separators between them.
+     */
+    private Split<K, V> split(BTreeNode<K, V> node, int height, K key) {
+        int i = node.findKey(key);
+        if (i >= 0) {
+            Split<K, V> split = new Split<>(node.getKey(i), node.getValue(i));
+            BTreeNode<K, V> right = newNode(node.isLeaf());
+            right.appendFrom(node, i + 1);
+            node.removeEntry(i);
+            split.left = piece(node, height);
+            split.right = piece(right, height);
+            return split;
+        }
+        int c = -i - 1;
+        Split<K, V> split = split(writableChild(node, c), height - 1, key);
+        // the node keeps the entries on the left of child c, right takes those on its right
+        BTreeNode<K, V> right = newNode(false);
+        right.appendFrom(node, c + 1);
+        node.removeChild(c);
+        if (c < node.getNumOfKeys()) {
+            K separatorKey = node.getKey(c);
+            V separatorValue = node.getValue(c);
+            node.removeEntry(c);
+            split.right = join(split.right, separatorKey, separatorValue, piece(right, height));
+        }
+        if (c > 0) {
+            K separatorKey = node.getKey(c - 1);
+            V separatorValue = node.getValue(c - 1);
+            node.removeEntry(c - 1);
+            split.left = join(piece(node, height), separatorKey, separatorValue, split.left);
+        }
+        return split;
+    }
 
+    /**
+     * @return the subtree of a node cut by split: the node itself, its only child if it has no key left,
+     * or nothing for a leaf without keys
+     */
+    private Subtree<K, V> piece(BTreeNode<K, V> node, int height) {
+        if (node.getNumOfKeys() > 0) {
+            updateSubtreeSize(node);
+            return new Subtree<>(node, height);
+        }
+        if (node.isLeaf()) return new Subtree<>(null, -1);
+        return new Subtree<>(node.getChild(0), height - 1);
+    }
+
+    /**
+     * Joins two B-Trees, whose roots may have less than t-1 keys, with an entry whose key is between them.
+     * The shorter tree is grafted on the edge of the taller one, so the cost grows with the height difference.
+     */
+    private Subtree<K, V> join(Subtree<K, V> left, K key, V value, Subtree<K, V> right) {
+        if (left.height > right.height) return graft(left, key, value, right, true);
+        if (left.height < right.height) return graft(right, key, value, left, false);
+        if (left.node == null) {
+            BTreeNode<K, V> leaf = newNode(true);
+            leaf.insertEntry(0, key, value);
+            updateSubtreeSize(leaf);
+            return new Subtree<>(leaf, 0);
+        }
+        BTreeNode<K, V> merged = left.node.thaw();
+        if (merged.getNumOfKeys() + 1 + right.node.getNumOfKeys() <= maxKeys) {
+            merged.insertEntry(merged.getNumOfKeys(), key, value);
+            merged.appendFrom(right.node, 0);
+            updateSubtreeSize(merged);
+            return new Subtree<>(merged, left.height);
+        }
+        // together they have at least 2t-1 keys, enough for two nodes of t-1
+        BTreeNode<K, V> parent = newNode(false);
+        parent.insertChild(0, merged);
+        parent.insertEntry(0, key, value);
+        parent.insertChild(1, right.node.thaw());
+        while (parent.getChild(0).getNumOfKeys() < minKeys)
+            borrowFromRightsibling(parent, 0);
+        while (parent.getChild(1).getNumOfKeys() < minKeys)
+            borrowFromLeftSibling(parent, 1);
+        updateSubtreeSize(parent);
+        return new Subtree<>(parent, left.height + 1);
+    }
+
+    /**
+     * Adds the entry and the shorter tree (possibly empty) on the right or left edge of the taller one, at the level
+     * where the root of the shorter tree becomes a child. Full nodes are split on the way down as insertion does,
+     * and the grafted root is then given t-1 keys by merging it with its sibling or borrowing from it.
+     */
+    private Subtree<K, V> graft(Subtree<K, V> tall, K key, V value, Subtree<K, V> shorter, boolean onRight) {
+        BTreeNode<K, V> top = tall.node.thaw();
+        int height = tall.height;
+        if (top.getNumOfKeys() == maxKeys) {
+            BTreeNode<K, V> parent = newNode(false);
+            parent.insertChild(0, top);
+            split(parent, 0);
+            top = parent;
+            height++;
+        }
+        BTreeNode<K, V> node = top;
+        int depth = 0;
+        for (int h = height; h > shorter.height + 1; h--) {
+            int c = onRight ? node.getNumOfChildren() - 1 : 0;
+            if (node.getChild(c).getNumOfKeys() == maxKeys) {
+                split(node, c);
+                if (onRight) c++;
+            }
+            depth = push(depth, node, c);
+            node = writableChild(node, c);
+        }
+        int idx = onRight ? node.getNumOfKeys() : 0;
+        node.insertEntry(idx, key, value);
+        if (shorter.node != null) {
+            int child = onRight ? idx + 1 : 0;
+            int sibling = onRight ? child - 1 : 1;
+            node.insertChild(child, shorter.node);
+            BTreeNode<K, V> grafted = writableChild(node, child);
+            if (grafted.getNumOfKeys() < minKeys) {
+                if (node.getChild(sibling).getNumOfKeys() + 1 + grafted.getNumOfKeys() <= maxKeys) {
+                    int leftChild = Math.min(child, sibling);
+                    writableChild(node, leftChild);
+                    treeUtility.merge(node, leftChild);
+                    updateSubtreeSize(node.getChild(leftChild));
                 } else {
-                    // in case we were managed to borrow a key
-                    return delete(node, key);
+                    while (grafted.getNumOfKeys() < minKeys) {
+                        if (onRight) borrowFromLeftSibling(node, child);
+                        else borrowFromRightsibling(node, child);
+                    }
                 }
-            } else {
-                return delete(node.getChildren().get(i), key);
             }
         }
+        updateSubtreeSize(node);
+        while (depth > 0) {
+            BTreeNode<K, V> parent = path[--depth];
+            path[depth] = null;
+            updateSubtreeSize(parent);
+        }
+        return new Subtree<>(top, height);
     }
 
     /**
-     * This fuction is rarely called and basically it merge the root and both of the children in one node
+     * Restores the minimum number of keys of the child at childIdx after a removal below it,
+     * borrowing from a sibling when one can spare a key and merging otherwise.
      */
-    void modifyStructure() {
-        IBTreeNode<K, V> newRoot = new BTreeNode<>();
-        List<IBTreeNode<K, V>> newChildren = getRoot().getChildren().get(0).getChildren();
-        List<K> newKeys = getRoot().getChildren().get(0).getKeys();
-        List<V> newVal = getRoot().getChildren().get(0).getValues();
-        newKeys.add(getRoot().getKeys().get(0));
-        newVal.add(getRoot().getValues().get(0));
-
-        for (int i = 0; i < getRoot().getChildren().get(1).getKeys().size(); i++) {
-            newKeys.add(getRoot().getChildren().get(1).getKeys().get(i));
-            newVal.add(getRoot().getChildren().get(1).getValues().get(i));
+    private void fixChild(BTreeNode<K, V> parent, int childIdx) {
+        if (parent.getChild(childIdx).getNumOfKeys() >= minKeys) return;
+        if (borrowFromLeftSibling(parent, childIdx) || borrowFromRightsibling(parent, childIdx)) return;
+        if (parent == root && parent.getNumOfKeys() == 1) {
+            modifyStructure();
+        } else if (childIdx == parent.getNumOfKeys()) {
+            writableChild(parent, childIdx - 1);
+            treeUtility.merge(parent, childIdx - 1);
+            updateSubtreeSize(parent.getChild(childIdx - 1));
+        } else {
+            treeUtility.merge(parent, childIdx);
+            updateSubtreeSize(parent.getChild(childIdx));
         }
+    }
 
-        if (newChildren != null) {
-            for (IBTreeNode<K, V> child : getRoot().getChildren().get(1).getChildren())
-                newChildren.add(child);
-        }
-        newRoot.setKeys(newKeys);
-        newRoot.setValues(newVal);
-        newRoot.setChildren(newChildren);
-        newRoot.setNumOfKeys(newKeys.size());
-        newRoot.setLeaf(newChildren == null);
-        root = newRoot;
+    /**
+     * This fuction is rarely called and basically it merge the root and both of the children in one node
+     */
+    void modifyStructure() {
+        writableChild(root, 0);
+        treeUtility.merge(root, 0);
+        root = root.getChild(0);
+        updateSubtreeSize(root);
     }
     /*
     ======================================================================================================================
@@ -206,63 +1091,28 @@ public class BTree<K extends Comparable<K>, V> implements IBTree<K, V> {
      * @param idx    the index of the child that needs to be splitted
      *               The method assumes that the parent is not full :)
      */
-    private void split(IBTreeNode<K, V> parent, int idx) {
-        if (parent == null || parent.getChildren() == null || parent.getChildren().get(idx) == null) {
-            System.out.println("Unexpected corrupted data in the split function");
+    private void split(BTreeNode<K, V> parent, int idx) {
+        if (parent == null || parent.isLeaf() || parent.getChild(idx) == null) {
             LocalException.throwRunTimeErrorException();
         }
-        IBTreeNode<K, V> target = parent.getChildren().get(idx);
-        IBTreeNode<K, V> newNode = new BTreeNode<>();
-        newNode.setLeaf(target.isLeaf());
+        BTreeNode<K, V> target = writableChild(parent, idx);
+        BTreeNode<K, V> newNode = newNode(target.isLeaf());
         /*
-        Fill the new node
+        Move the upper half of the target (and the children on its right) to the new node,
+        then pull the median out of the target
          */
-        List<K> keys = new ArrayList<>();
-        List<V> val = new ArrayList<>();
-        List<K> newTargetKeys = new ArrayList<>();
-        List<V> newTargetValues = new ArrayList<>();
-        K medianKey = target.getKeys().get(minimumDegree - 1);
-        V medianValue = target.getValues().get(minimumDegree - 1);
-
-        for (int i = 0; i < minimumDegree - 1; i++) {
-            keys.add(target.getKeys().get(i + minimumDegree));
-            val.add(target.getValues().get(i + minimumDegree));
-
-            newTargetKeys.add(target.getKeys().get(i));
-            newTargetValues.add(target.getValues().get(i));
-        }
-        newNode.setKeys(keys);
-        newNode.setValues(val);
-        newNode.setNumOfKeys(keys.size());
-
-        target.setKeys(newTargetKeys);
-        target.setValues(newTargetValues);
-        target.setNumOfKeys(keys.size());
-        if (!newNode.isLeaf()) {
-            List<IBTreeNode<K, V>> children = new ArrayList<>();
-            List<IBTreeNode<K, V>> newTargetChildren = new ArrayList<>();
-            for (int i = 0; i < minimumDegree; i++) {
-                children.add(target.getChildren().get(i + minimumDegree));
-                newTargetChildren.add(target.getChildren().get(i));
-            }
-            target.setChildren(newTargetChildren);
-            newNode.setChildren(children);
-        }
+        newNode.appendFrom(target, minimumDegree);
+        K medianKey = target.getKey(minimumDegree - 1);
+        V medianValue = target.getValue(minimumDegree - 1);
+        target.removeEntry(minimumDegree - 1);
         /*
-        Shift parent nodes so that we make the median place ready for the median element
+        Shift parent entries so that we make the median place ready for the median element
          */
-        List<K> parentKeys = parent.getKeys();
-        List<V> parentValues = parent.getValues();
-        List<IBTreeNode<K, V>> children = parent.getChildren();
-        children.add(idx + 1, newNode);
-        parentKeys.add(idx, medianKey);
-        parentValues.add(idx, medianValue);
-
-        parent.setValues(parentValues);
-        parent.setChildren(children);
-        parent.setKeys(parentKeys);
-        parent.setNumOfKeys(parent.getKeys().size());
-
+        parent.insertEntry(idx, medianKey, medianValue);
+        parent.insertChild(idx + 1, newNode);
+        updateSubtreeSize(target);
+        updateSubtreeSize(newNode);
+        updateSubtreeSize(parent);
     }
 
 
@@ -270,59 +1120,47 @@ public class BTree<K extends Comparable<K>, V> implements IBTree<K, V> {
     Here is a list of facts
         1 - leaf node will have leaf sibling
      */
-    private boolean borrowFromLeftSibling(IBTreeNode<K, V> parent, int childrenIndex) {
+    private boolean borrowFromLeftSibling(BTreeNode<K, V> parent, int childrenIndex) {
         if (childrenIndex == 0) return false;
-        IBTreeNode<K, V> sibling = parent.getChildren().get(childrenIndex - 1);
-        if (sibling.getKeys().size() > minKeys) {
-            treeUtility.addEntry(parent.getChildren().get(childrenIndex), parent.getKeys().get(childrenIndex - 1), parent.getValues().get(childrenIndex - 1));
-            int largestKeyIndex = sibling.getKeys().size() - 1;
-            editEntry(parent, sibling.getKeys().get(largestKeyIndex), sibling.getValues().get(largestKeyIndex), childrenIndex - 1);
-            deleteEntryFromLeafNode(sibling, largestKeyIndex);
+        BTreeNode<K, V> sibling = parent.getChild(childrenIndex - 1);
+        if (sibling.getNumOfKeys() > minKeys) {
+            sibling = writableChild(parent, childrenIndex - 1);
+            BTreeNode<K, V> cur = parent.getChild(childrenIndex);
+            treeUtility.addEntry(cur, parent.getKey(childrenIndex - 1), parent.getValue(childrenIndex - 1));
+            int largestKeyIndex = sibling.getNumOfKeys() - 1;
+            editEntry(parent, sibling.getKey(largestKeyIndex), sibling.getValue(largestKeyIndex), childrenIndex - 1);
+            sibling.removeEntry(largestKeyIndex);
 
             if (!sibling.isLeaf()) {
-                int last = sibling.getChildren().size() - 1;
-                IBTreeNode<K, V> lastChild = sibling.getChildren().get(last);
-                deleteChild(sibling, last);
-                addChild(parent.getChildren().get(childrenIndex), 0, lastChild);
+                int last = sibling.getNumOfChildren() - 1;
+                BTreeNode<K, V> lastChild = sibling.getChild(last);
+                sibling.removeChild(last);
+                cur.insertChild(0, lastChild);
             }
+            updateSubtreeSize(cur);
+            updateSubtreeSize(sibling);
             return true;
         } else {
             return false;
         }
     }
 
-    private void deleteChild(IBTreeNode<K, V> node, int idx) {
-        if (node.isLeaf()) return;
-        List<IBTreeNode<K, V>> children = node.getChildren();
-        children.remove(idx);
-        node.setChildren(children);
-
-    }
-
-    private void addChild(IBTreeNode<K, V> node, int idx, IBTreeNode<K, V> newChild) {
-        if (newChild == null) return;
-        List<IBTreeNode<K, V>> children = node.getChildren();
-        if (idx == children.size())
-            children.add(newChild);
-        else
-            children.add(idx, newChild);
-
-        node.setChildren(children);
-    }
-
-    private boolean borrowFromRightsibling(IBTreeNode<K, V> parent, int childrenIndex) {
-        if (childrenIndex == parent.getChildren().size() - 1) return false;
-        IBTreeNode<K, V> sibling = parent.getChildren().get(childrenIndex + 1);
-        if (sibling.getKeys().size() > minKeys) {
-            IBTreeNode<K, V> cur = parent.getChildren().get(childrenIndex);
-            treeUtility.addEntry(cur, parent.getKeys().get(childrenIndex), parent.getValues().get(childrenIndex));
-            editEntry(parent, sibling.getKeys().get(0), sibling.getValues().get(0), childrenIndex);
-            deleteEntryFromLeafNode(sibling, 0);
+    private boolean borrowFromRightsibling(BTreeNode<K, V> parent, int childrenIndex) {
+        if (childrenIndex == parent.getNumOfChildren() - 1) return false;
+        BTreeNode<K, V> sibling = parent.getChild(childrenIndex + 1);
+        if (sibling.getNumOfKeys() > minKeys) {
+            sibling = writableChild(parent, childrenIndex + 1);
+            BTreeNode<K, V> cur = parent.getChild(childrenIndex);
+            treeUtility.addEntry(cur, parent.getKey(childrenIndex), parent.getValue(childrenIndex));
+            editEntry(parent, sibling.getKey(0), sibling.getValue(0), childrenIndex);
+            sibling.removeEntry(0);
             if (!cur.isLeaf()) {
-                IBTreeNode<K, V> childToBeMoved = sibling.getChildren().get(0);
-                deleteChild(sibling, 0);
-                addChild(cur, cur.getChildren().size(), childToBeMoved);
+                BTreeNode<K, V> childToBeMoved = sibling.getChild(0);
+                sibling.removeChild(0);
+                cur.insertChild(cur.getNumOfChildren(), childToBeMoved);
             }
+            updateSubtreeSize(cur);
+            updateSubtreeSize(sibling);
             return true;
         } else {
             return false;
@@ -330,47 +1168,157 @@ public class BTree<K extends Comparable<K>, V> implements IBTree<K, V> {
     }
 
 
-    private void editEntry(IBTreeNode<K, V> node, K newKey, V newValue, int index) {
-        List<K> keys = new ArrayList<>();
-        List<V> values = new ArrayList<>();
+    /**
+     * Copies the child at idx first if it is shared with a snapshot. The parent must already be writable.
+     */
+    private BTreeNode<K, V> writableChild(BTreeNode<K, V> parent, int idx) {
+        BTreeNode<K, V> child = parent.getChild(idx);
+        BTreeNode<K, V> writable = child.thaw();
+        if (writable != child) parent.setChild(idx, writable);
+        return writable;
+    }
 
-        for (int i = 0; i < node.getKeys().size(); i++) {
-            if (i == index) {
-                keys.add(newKey);
-                values.add(newValue);
-            } else {
-                keys.add(node.getKeys().get(i));
-                values.add(node.getValues().get(i));
+    @SuppressWarnings("unchecked")
+    BTreeNode<K, V> newNode(boolean leaf) {
+        if (prefixCompressedKeys)
+            return (BTreeNode<K, V>) (BTreeNode<?, ?>) new PrefixKeyNode<V>(minimumDegree, leaf);
+        if (keyNormalizer != null)
+            return new NormalizedKeyNode<>(minimumDegree, leaf, keyNormalizer);
+        return new BTreeNode<>(minimumDegree, leaf);
+    }
+
+    /*
+    ======================================================================================================================
+    Order statistics
+     */
+
+    /**
+     * @return the number of entries, in O(1) for trees with order statistics and by counting them otherwise
+     */
+    public int size() {
+        if (root == null) return 0;
+        if (orderStatistics) return root.getSubtreeSize();
+        int size = 0;
+        for (Iterator<Map.Entry<K, V>> it = entries(); it.hasNext(); it.next())
+            size++;
+        return size;
+    }
+
+    /**
+     * @return the number of keys smaller than the key, which does not have to be in the tree
+     */
+    public int rank(K key) {
+        InputChecker.checkNullValue(key);
+        return countBelow(key, false);
+    }
+
+    /**
+     * @param k from 0 to size() - 1
+     * @return the k-th smallest key
+     */
+    public K select(int k) {
+        checkOrderStatistics();
+        if (k < 0 || k >= size()) LocalException.throwRunTimeErrorException();
+        BTreeNode<K, V> node = root;
+        while (true) {
+            int i = 0;
+            for (; i < node.getNumOfKeys(); i++) {
+                int childSize = node.isLeaf() ? 0 : node.getChild(i).getSubtreeSize();
+                if (k < childSize) break;
+                k -= childSize;
+                if (k == 0) return node.getKey(i);
+                k--;
             }
+            node = node.getChild(i);
         }
-        node.setKeys(keys);
-        node.setValues(values);
+    }
 
+    /**
+     * Counts the keys between from and to without visiting them, with the bounds of {@link #range}.
+     * @param from the lower bound, null for none
+     * @param to   the upper bound, null for none
+     */
+    public int countRange(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        checkOrderStatistics();
+        int upTo = to == null ? size() : countBelow(to, toInclusive);
+        int below = from == null ? 0 : countBelow(from, !fromInclusive);
+        return Math.max(0, upTo - below);
     }
 
-    void getAllKeys(IBTreeNode<K, V> root, List<K> res) {
-        if (root == null) return;
-        else {
-            for (int i = 0; i < root.getKeys().size(); i++)
-                res.add(root.getKeys().get(i));
-            if (root.isLeaf() == false)
-                for (IBTreeNode<K, V> child : root.getChildren())
-                    getAllKeys(child, res);
-            else return;
+    /**
+     * @return the number of keys smaller than the key, or smaller or equal to it
+     */
+    private int countBelow(K key, boolean inclusive) {
+        checkOrderStatistics();
+        int count = 0;
+        BTreeNode<K, V> node = root;
+        while (node != null) {
+            int i = node.findKey(key);
+            int end = i >= 0 ? i : -i - 1;
+            count += end;
+            if (!node.isLeaf())
+                for (int j = 0; j < end; j++)
+                    count += node.getChild(j).getSubtreeSize();
+            if (i >= 0)
+                return count + (inclusive ? 1 : 0) + (node.isLeaf() ? 0 : node.getChild(i).getSubtreeSize());
+            node = node.isLeaf() ? null : node.getChild(end);
         }
+        return count;
     }
 
+    /**
+     * Adds the entry just inserted for the key to the sizes of the subtrees on its path.
+     */
+    private void entryAdded(K key) {
+        if (!orderStatistics) return;
+        BTreeNode<K, V> node = root;
+        while (true) {
+            node.setSubtreeSize(node.getSubtreeSize() + 1);
+            int i = node.findKey(key);
+            if (i >= 0) return;
+            node = node.getChild(-i - 1);
+        }
+    }
+
+    private void updateSubtreeSize(BTreeNode<K, V> node) {
+        if (orderStatistics) node.updateSubtreeSize();
+    }
+
+    private void updateAllSubtreeSizes(BTreeNode<K, V> node) {
+        if (!orderStatistics || node == null) return;
+        if (!node.isLeaf())
+            for (int i = 0; i < node.getNumOfChildren(); i++)
+                updateAllSubtreeSizes(node.getChild(i));
+        node.updateSubtreeSize();
+    }
 
-    private void deleteEntryFromLeafNode(IBTreeNode<K, V> node, int idx) {
-        List<K> keys = node.getKeys();
-        List<V> val = node.getValues();
-        keys.remove(idx);
-        val.remove(idx);
+    private void checkOrderStatistics() {
+        if (!orderStatistics) LocalException.throwRunTimeErrorException();
+    }
 
-        node.setKeys(keys);
-        node.setValues(val);
-        node.setNumOfKeys(keys.size());
+    private void checkWritable() {
+        if (readOnly) LocalException.throwRunTimeErrorException();
+    }
+
+    private void editEntry(BTreeNode<K, V> node, K newKey, V newValue, int index) {
+        node.setEntry(index, newKey, newValue);
+    }
 
+    /**
+     * Adds the keys of the subtree to res, each node before its children, with an explicit stack.
+     */
+    void getAllKeys(BTreeNode<K, V> root, List<K> res) {
+        if (root == null) return;
+        Deque<BTreeNode<K, V>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            BTreeNode<K, V> node = stack.pop();
+            for (int i = 0; i < node.getNumOfKeys(); i++)
+                res.add(node.getKey(i));
+            if (!node.isLeaf())
+                for (int i = node.getNumOfChildren() - 1; i >= 0; i--)
+                    stack.push(node.getChild(i));
+        }
     }
 
     public void checkAllIsOk(IBTreeNode<K, V> node) {
@@ -413,4 +1361,67 @@ public class BTree<K extends Comparable<K>, V> implements IBTree<K, V> {
         }
     }
 
+    /* a tree cut out or joined by deleteRange, splitAt or concat, leaves being at height 0. node is null for an empty one, at height -1 */
+    private static final class Subtree<K extends Comparable<K>, V> {
+        final BTreeNode<K, V> node;
+        final int height;
+
+        Subtree(BTreeNode<K, V> node, int height) {
+            this.node = node;
+            this.height = height;
+        }
+    }
+
+    /* the two sides of a split and the entry of the key it was split around */
+    private static final class Split<K extends Comparable<K>, V> {
+        final K key;
+        final V value;
+        Subtree<K, V> left;
+        Subtree<K, V> right;
+
+        Split(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /* merges two ascending cursors, combining the values of the keys found in both */
+    private static final class MergingIterator<K extends Comparable<K>, V> implements Iterator<Map.Entry<K, V>> {
+        private final Iterator<Map.Entry<K, V>> left;
+        private final Iterator<Map.Entry<K, V>> right;
+        private final BinaryOperator<V> onConflict;
+        private Map.Entry<K, V> nextLeft;
+        private Map.Entry<K, V> nextRight;
+
+        MergingIterator(Iterator<Map.Entry<K, V>> left, Iterator<Map.Entry<K, V>> right, BinaryOperator<V> onConflict) {
+            this.left = left;
+            this.right = right;
+            this.onConflict = onConflict;
+            nextLeft = left.hasNext() ? left.next() : null;
+            nextRight = right.hasNext() ? right.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLeft != null || nextRight != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            int cmp = nextLeft == null ? 1 : nextRight == null ? -1 : nextLeft.getKey().compareTo(nextRight.getKey());
+            Map.Entry<K, V> entry;
+            if (cmp < 0) {
+                entry = nextLeft;
+            } else if (cmp > 0) {
+                entry = nextRight;
+            } else {
+                entry = new AbstractMap.SimpleImmutableEntry<>(nextLeft.getKey(),
+                        onConflict.apply(nextLeft.getValue(), nextRight.getValue()));
+            }
+            if (cmp <= 0) nextLeft = left.hasNext() ? left.next() : null;
+            if (cmp >= 0) nextRight = right.hasNext() ? right.next() : null;
+            return entry;
+        }
+    }
 }
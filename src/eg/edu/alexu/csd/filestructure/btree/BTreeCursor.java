@@ -0,0 +1,153 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy in-order cursor over the entries of a BTree, ascending or descending, optionally bounded on both ends.
+ * It keeps an explicit stack of (node, index) frames, one per level, where index is the next key to emit in that node,
+ * so nothing is copied and the memory used is proportional to the height of the tree.
+ * The tree must not be modified while the cursor is in use.
+ */
+class BTreeCursor<K extends Comparable<K>, V> implements Iterator<Map.Entry<K, V>> {
+    private final boolean descending;
+    private final K end;
+    private final boolean endInclusive;
+
+    private BTreeNode<K, V>[] nodes = BTreeNode.newArray(8);
+    private int[] indexes = new int[8];
+    private int depth;
+
+    /**
+     * @param root          the root of the tree, may be null
+     * @param from          the lower bound, null for none
+     * @param fromInclusive whether an entry equal to from is part of the range
+     * @param to            the upper bound, null for none
+     * @param toInclusive   whether an entry equal to to is part of the range
+     * @param descending    whether to walk from the upper bound down to the lower one
+     */
+    BTreeCursor(BTreeNode<K, V> root, K from, boolean fromInclusive, K to, boolean toInclusive, boolean descending) {
+        this.descending = descending;
+        this.end = descending ? from : to;
+        this.endInclusive = descending ? fromInclusive : toInclusive;
+        if (root == null) return;
+        if (descending)
+            seekLast(root, to, toInclusive);
+        else
+            seekFirst(root, from, fromInclusive);
+        skipExhaustedFrames();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (depth == 0) return false;
+        if (end == null) return true;
+        int cmp = nodes[depth - 1].getKey(indexes[depth - 1]).compareTo(end);
+        if (descending) cmp = -cmp;
+        return cmp < 0 || (cmp == 0 && endInclusive);
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        BTreeNode<K, V> node = nodes[depth - 1];
+        int i = indexes[depth - 1];
+        Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<>(node.getKey(i), node.getValue(i));
+        if (descending) {
+            indexes[depth - 1] = i - 1;
+            if (!node.isLeaf()) pushRightmostPath(node.getChild(i));
+        } else {
+            indexes[depth - 1] = i + 1;
+            if (!node.isLeaf()) pushLeftmostPath(node.getChild(i + 1));
+        }
+        skipExhaustedFrames();
+        return entry;
+    }
+
+    private void seekFirst(BTreeNode<K, V> node, K from, boolean inclusive) {
+        if (from == null) {
+            pushLeftmostPath(node);
+            return;
+        }
+        while (true) {
+            int i = node.findKey(from);
+            if (i >= 0) {
+                // the child on the left only holds smaller keys, so the descent stops here
+                if (inclusive) {
+                    push(node, i);
+                } else {
+                    push(node, i + 1);
+                    if (!node.isLeaf()) pushLeftmostPath(node.getChild(i + 1));
+                }
+                return;
+            }
+            i = -i - 1;
+            push(node, i);
+            if (node.isLeaf()) return;
+            node = node.getChild(i);
+        }
+    }
+
+    private void seekLast(BTreeNode<K, V> node, K to, boolean inclusive) {
+        if (to == null) {
+            pushRightmostPath(node);
+            return;
+        }
+        while (true) {
+            int i = node.findKey(to);
+            if (i >= 0) {
+                if (inclusive) {
+                    push(node, i);
+                } else {
+                    push(node, i - 1);
+                    if (!node.isLeaf()) pushRightmostPath(node.getChild(i));
+                }
+                return;
+            }
+            i = -i - 1;
+            push(node, i - 1);
+            if (node.isLeaf()) return;
+            node = node.getChild(i);
+        }
+    }
+
+    private void pushLeftmostPath(BTreeNode<K, V> node) {
+        while (true) {
+            push(node, 0);
+            if (node.isLeaf()) return;
+            node = node.getChild(0);
+        }
+    }
+
+    private void pushRightmostPath(BTreeNode<K, V> node) {
+        while (true) {
+            push(node, node.getNumOfKeys() - 1);
+            if (node.isLeaf()) return;
+            node = node.getChild(node.getNumOfKeys());
+        }
+    }
+
+    /**
+     * Pops the frames that have no key left to emit, so the top frame (if any) points at the next entry.
+     */
+    private void skipExhaustedFrames() {
+        while (depth > 0) {
+            int i = indexes[depth - 1];
+            if (descending ? i >= 0 : i < nodes[depth - 1].getNumOfKeys()) return;
+            nodes[--depth] = null;
+        }
+    }
+
+    private void push(BTreeNode<K, V> node, int index) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            indexes = Arrays.copyOf(indexes, depth * 2);
+        }
+        nodes[depth] = node;
+        indexes[depth] = index;
+        depth++;
+    }
+}
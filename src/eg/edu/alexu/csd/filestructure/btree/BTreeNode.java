@@ -1,14 +1,81 @@
 package eg.edu.alexu.csd.filestructure.btree;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * Array backed node. Keys and values live in arrays of capacity 2t-1 and children in an array of capacity 2t,
+ * so every structural change is an in-place shift with System.arraycopy.
+ * The lists returned by the getters are read-only views over the live part of the arrays.
+ */
 public class BTreeNode<K extends Comparable<K>, V> implements IBTreeNode<K, V> {
 
+    private static final int KEY_SLOTS = 0;
+    private static final int VALUE_SLOTS = 1;
+    private static final int CHILD_SLOTS = 2;
+    /* below this many keys a straight scan beats the branches of a binary search */
+    private static final int LINEAR_SEARCH_THRESHOLD = 8;
+
     private int numberOfKeys;
-    private List<K> keys;
-    private List<V> values;
-    private List<IBTreeNode<K, V>> children;
+    private int numberOfChildren;
+    private int capacity;
+    /* null in subclasses that encode the keys themselves, see the key storage hooks below */
+    private Object[] keys;
+    private Object[] values;
+    private Object[] children;
     private boolean leaf;
+    /* set once the node is shared with a snapshot, after which it is copied instead of modified */
+    private boolean frozen;
+    /* number of entries in the subtree, only kept up to date by trees with order statistics */
+    private int subtreeSize;
+
+    private List<K> keysView;
+    private List<V> valuesView;
+    private List<IBTreeNode<K, V>> childrenView;
+
+    public BTreeNode(int minimumDegree, boolean leaf) {
+        this(minimumDegree, leaf, true);
+    }
+
+    /**
+     * @param withValues false for nodes that only route by key, which then carry no values array
+     */
+    BTreeNode(int minimumDegree, boolean leaf, boolean withValues) {
+        this(minimumDegree, leaf, withValues, true);
+    }
+
+    /**
+     * @param withKeyArray false for subclasses that override the key storage hooks
+     */
+    BTreeNode(int minimumDegree, boolean leaf, boolean withValues, boolean withKeyArray) {
+        capacity = 2 * minimumDegree - 1;
+        if (withKeyArray)
+            keys = new Object[capacity];
+        if (withValues)
+            values = new Object[capacity];
+        setLeaf(leaf);
+    }
+
+    /**
+     * Copy sharing the children of src, which become shared in turn.
+     */
+    BTreeNode(BTreeNode<K, V> src) {
+        numberOfKeys = src.numberOfKeys;
+        numberOfChildren = src.numberOfChildren;
+        capacity = src.capacity;
+        if (src.keys != null)
+            keys = src.keys.clone();
+        if (src.values != null)
+            values = src.values.clone();
+        if (src.children != null)
+            children = src.children.clone();
+        leaf = src.leaf;
+        subtreeSize = src.subtreeSize;
+        for (int i = 0; i < numberOfChildren; i++)
+            getChild(i).frozen = true;
+    }
 
     @Override
     public int getNumOfKeys() {
@@ -22,42 +89,349 @@ public class BTreeNode<K extends Comparable<K>, V> implements IBTreeNode<K, V> {
 
     @Override
     public boolean isLeaf() {
-        // return (children == null || children.size() == 0 ) ;
         return leaf;
     }
 
     @Override
     public void setLeaf(boolean isLeaf) {
         leaf = isLeaf;
+        if (!leaf && children == null)
+            children = new Object[capacity + 1];
     }
 
     @Override
     public List<K> getKeys() {
-        return keys;
+        if (keysView == null) keysView = new SlotList<>(KEY_SLOTS);
+        return keysView;
     }
 
     @Override
     public void setKeys(List<K> keys) {
-        this.keys = keys;
+        ensureCapacity(keys.size());
+        for (int i = 0; i < keys.size(); i++)
+            this.keys[i] = keys.get(i);
+        clear(this.keys, keys.size(), numberOfKeys);
+        numberOfKeys = keys.size();
     }
 
     @Override
     public List<V> getValues() {
-        return this.values;
+        if (values == null) return null;
+        if (valuesView == null) valuesView = new SlotList<>(VALUE_SLOTS);
+        return valuesView;
     }
 
     @Override
     public void setValues(List<V> values) {
-        this.values = values;
+        if (this.values == null) return;
+        ensureCapacity(values.size());
+        for (int i = 0; i < values.size(); i++)
+            this.values[i] = values.get(i);
     }
 
     @Override
     public List<IBTreeNode<K, V>> getChildren() {
-        return this.children;
+        if (children == null) return null;
+        if (childrenView == null) childrenView = new SlotList<>(CHILD_SLOTS);
+        return childrenView;
     }
 
     @Override
     public void setChildren(List<IBTreeNode<K, V>> children) {
-        this.children = children;
+        if (children == null) {
+            this.children = null;
+            numberOfChildren = 0;
+            return;
+        }
+        ensureCapacity(children.size() - 1);
+        for (int i = 0; i < children.size(); i++)
+            this.children[i] = children.get(i);
+        clear(this.children, children.size(), numberOfChildren);
+        numberOfChildren = children.size();
+    }
+
+    /*
+    ======================================================================================================================
+    Key storage hooks. Apart from findKey and setKeys, which a subclass overrides too, every access to the keys
+    goes through them, so a subclass may keep the keys in another form, as PrefixKeyNode does for strings.
+    The hooks that change the number of keys run before it is updated.
+    ======================================================================================================================
+     */
+
+    @SuppressWarnings("unchecked")
+    K getKey(int idx) {
+        return (K) keys[idx];
+    }
+
+    void setKey(int idx, K key) {
+        keys[idx] = key;
+    }
+
+    /**
+     * Shifts the keys at [idx, numberOfKeys) one slot to the right and writes key at idx.
+     */
+    void insertKey(int idx, K key) {
+        int tail = numberOfKeys - idx;
+        if (tail > 0)
+            System.arraycopy(keys, idx, keys, idx + 1, tail);
+        keys[idx] = key;
+    }
+
+    /**
+     * Shifts the keys after idx one slot to the left, overwriting the key at idx.
+     */
+    void removeKey(int idx) {
+        int tail = numberOfKeys - idx - 1;
+        if (tail > 0)
+            System.arraycopy(keys, idx + 1, keys, idx, tail);
+        keys[numberOfKeys - 1] = null;
+    }
+
+    /**
+     * Copies the keys [from, from + len) of src after the keys of this node.
+     */
+    void appendKeys(BTreeNode<K, V> src, int from, int len) {
+        System.arraycopy(src.keys, from, keys, numberOfKeys, len);
+    }
+
+    /**
+     * Drops the keys from index from on.
+     */
+    void truncateKeys(int from) {
+        clear(keys, from, numberOfKeys);
+    }
+
+    void growKeys(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+    }
+
+    /**
+     * @return a copy of this node, see the copy constructor
+     */
+    BTreeNode<K, V> copy() {
+        return new BTreeNode<>(this);
+    }
+
+    /*
+    ======================================================================================================================
+    In-place operations used by the tree. None of them allocates unless the node outgrows its capacity
+    through the list setters above.
+     */
+
+    int getNumOfChildren() {
+        return numberOfChildren;
+    }
+
+    @SuppressWarnings("unchecked")
+    V getValue(int idx) {
+        return values == null ? null : (V) values[idx];
+    }
+
+    @SuppressWarnings("unchecked")
+    BTreeNode<K, V> getChild(int idx) {
+        return (BTreeNode<K, V>) children[idx];
+    }
+
+    /**
+     * The one intra-node search used by every descent.
+     *
+     * @param key the key to look for
+     * @return the slot of the key if it is in this node, otherwise -(i + 1) where i is the child to descend into
+     * (which is also the slot the key would be inserted at)
+     */
+    @SuppressWarnings("unchecked")
+    int findKey(K key) {
+        int low = 0;
+        int high = numberOfKeys - 1;
+        while (high - low >= LINEAR_SEARCH_THRESHOLD) {
+            int mid = (low + high) >>> 1;
+            int cmp = key.compareTo((K) keys[mid]);
+            if (cmp > 0) low = mid + 1;
+            else if (cmp < 0) high = mid - 1;
+            else return mid;
+        }
+        for (; low <= high; low++) {
+            int cmp = key.compareTo((K) keys[low]);
+            if (cmp == 0) return low;
+            if (cmp < 0) break;
+        }
+        return -(low + 1);
+    }
+
+    void setEntry(int idx, K key, V value) {
+        setKey(idx, key);
+        if (values != null)
+            values[idx] = value;
+    }
+
+    void setValue(int idx, V value) {
+        values[idx] = value;
+    }
+
+    /**
+     * Shifts the entries at [idx, numberOfKeys) one slot to the right and writes the new entry at idx.
+     */
+    void insertEntry(int idx, K key, V value) {
+        int tail = numberOfKeys - idx;
+        insertKey(idx, key);
+        if (values != null) {
+            if (tail > 0)
+                System.arraycopy(values, idx, values, idx + 1, tail);
+            values[idx] = value;
+        }
+        numberOfKeys++;
+    }
+
+    /**
+     * Shifts the entries after idx one slot to the left, overwriting the entry at idx.
+     */
+    void removeEntry(int idx) {
+        int tail = numberOfKeys - idx - 1;
+        removeKey(idx);
+        numberOfKeys--;
+        if (values != null) {
+            if (tail > 0)
+                System.arraycopy(values, idx + 1, values, idx, tail);
+            values[numberOfKeys] = null;
+        }
+    }
+
+    void insertChild(int idx, BTreeNode<K, V> child) {
+        int tail = numberOfChildren - idx;
+        if (tail > 0)
+            System.arraycopy(children, idx, children, idx + 1, tail);
+        children[idx] = child;
+        numberOfChildren++;
+    }
+
+    void setChild(int idx, BTreeNode<K, V> child) {
+        children[idx] = child;
+    }
+
+    void removeChild(int idx) {
+        int tail = numberOfChildren - idx - 1;
+        if (tail > 0)
+            System.arraycopy(children, idx + 1, children, idx, tail);
+        numberOfChildren--;
+        children[numberOfChildren] = null;
+    }
+
+    /**
+     * Moves the entries of src starting at from, and its children starting at the same index,
+     * to the end of this node. src is truncated to from entries and from children, unless it is frozen:
+     * then it is left intact and the children copied out of it are frozen too.
+     */
+    void appendFrom(BTreeNode<K, V> src, int from) {
+        int len = src.numberOfKeys - from;
+        if (len > 0) {
+            appendKeys(src, from, len);
+            if (values != null)
+                System.arraycopy(src.values, from, values, numberOfKeys, len);
+            if (!src.frozen) {
+                src.truncateKeys(from);
+                if (values != null)
+                    clear(src.values, from, src.numberOfKeys);
+                src.numberOfKeys = from;
+            }
+            numberOfKeys += len;
+        }
+        int childLen = src.numberOfChildren - from;
+        if (childLen > 0) {
+            System.arraycopy(src.children, from, children, numberOfChildren, childLen);
+            if (src.frozen) {
+                for (int i = numberOfChildren; i < numberOfChildren + childLen; i++)
+                    getChild(i).frozen = true;
+            } else {
+                clear(src.children, from, src.numberOfChildren);
+                src.numberOfChildren = from;
+            }
+            numberOfChildren += childLen;
+        }
+    }
+
+    int getSubtreeSize() {
+        return subtreeSize;
+    }
+
+    void setSubtreeSize(int subtreeSize) {
+        this.subtreeSize = subtreeSize;
+    }
+
+    /**
+     * Recomputes the size of the subtree from the keys of this node and the sizes of its children.
+     */
+    void updateSubtreeSize() {
+        int size = numberOfKeys;
+        for (int i = 0; i < numberOfChildren; i++)
+            size += getChild(i).subtreeSize;
+        subtreeSize = size;
+    }
+
+    /**
+     * Marks the node as shared with a snapshot. Its children are only marked once the node is thawed,
+     * so freezing a whole tree is O(1).
+     */
+    void freeze() {
+        frozen = true;
+    }
+
+    boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * @return this node if it may be modified in place, otherwise a private copy of it
+     */
+    BTreeNode<K, V> thaw() {
+        return frozen ? copy() : this;
+    }
+
+    void ensureCapacity(int numKeys) {
+        if (numKeys <= capacity) return;
+        capacity = numKeys;
+        growKeys(numKeys);
+        if (values != null)
+            values = Arrays.copyOf(values, numKeys);
+        if (children != null)
+            children = Arrays.copyOf(children, numKeys + 1);
+    }
+
+    /**
+     * @return an array of nodes for the cursors and descents that keep a path of them
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static <K extends Comparable<K>, V> BTreeNode<K, V>[] newArray(int length) {
+        return (BTreeNode<K, V>[]) new BTreeNode[length];
+    }
+
+    private static void clear(Object[] array, int from, int to) {
+        if (from < to)
+            Arrays.fill(array, from, to, null);
+    }
+
+    /**
+     * Read-only view over the live slots of one of the arrays. It reads the fields on every call
+     * so it stays valid across shifts and capacity changes.
+     */
+    private final class SlotList<T> extends AbstractList<T> implements RandomAccess {
+        private final int slots;
+
+        SlotList(int slots) {
+            this.slots = slots;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            if (slots == CHILD_SLOTS) return (T) children[index];
+            return (T) (slots == VALUE_SLOTS ? values[index] : getKey(index));
+        }
+
+        @Override
+        public int size() {
+            return slots == CHILD_SLOTS ? numberOfChildren : numberOfKeys;
+        }
     }
 }
@@ -0,0 +1,186 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary stream format of {@link BTree#save} and {@link BTree#load}.
+ *
+ * The stream is int MAGIC, byte VERSION, varint minimum degree, byte 1 if the tree has entries (0 otherwise),
+ * the nodes in pre-order and the CRC32 of everything before it as an int. Each node is
+ * <pre>
+ *   varint length of the rest, byte leaf (1 or 0), varint n, n keys, n values
+ * </pre>
+ * encoded with the serializers given to both sides, so loading reads each node with one read and builds it
+ * directly, without any search, comparison or split.
+ */
+final class BTreeStreamFormat {
+    private static final int MAGIC = 0x42545353;
+    private static final byte VERSION = 1;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private BTreeStreamFormat() {
+    }
+
+    static <K extends Comparable<K>, V> void save(BTreeNode<K, V> root, int minimumDegree, OutputStream out,
+                                                  Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        InputChecker.checkNullValue(out, keySerializer, valueSerializer);
+        try {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+            CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+            DataOutputStream data = new DataOutputStream(checked);
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + 2 + Serializers.varintSize(minimumDegree));
+            header.putInt(MAGIC).put(VERSION);
+            Serializers.writeVarint(minimumDegree, header);
+            boolean empty = root == null || root.getNumOfKeys() == 0;
+            header.put((byte) (empty ? 0 : 1));
+            data.write(header.array());
+            if (!empty)
+                new Writer<>(data, keySerializer, valueSerializer).write(root);
+            new DataOutputStream(buffered).writeInt((int) checked.getChecksum().getValue());
+            // the caller owns the stream and closes it
+            buffered.flush();
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+    }
+
+    /**
+     * Reads a tree written by {@link #save}. The stream is read one node at a time, so it should be buffered.
+     * @param tree creates the nodes and gives the minimum degree the stream must have
+     * @return the root, null for an empty tree
+     */
+    static <K extends Comparable<K>, V> BTreeNode<K, V> load(InputStream in, BTree<K, V> tree,
+                                                             Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        InputChecker.checkNullValue(in, keySerializer, valueSerializer);
+        int minimumDegree = tree.getMinimumDegree();
+        BTreeNode<K, V> root = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            DataInputStream data = new DataInputStream(checked);
+            if (data.readInt() != MAGIC || data.readByte() != VERSION || readVarint(data) != minimumDegree)
+                LocalException.throwRunTimeErrorException();
+            if (data.readByte() != 0)
+                root = new Reader<>(data, tree, keySerializer, valueSerializer).read(0, true);
+            int checksum = (int) checked.getChecksum().getValue();
+            if (new DataInputStream(in).readInt() != checksum)
+                LocalException.throwRunTimeErrorException();
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+        return root;
+    }
+
+    /**
+     * Reads the bytes of a varint off the stream and decodes them with {@link Serializers#readVarint}.
+     */
+    private static int readVarint(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[5];
+        int length = 0;
+        do {
+            bytes[length] = in.readByte();
+        } while (bytes[length++] < 0 && length < bytes.length);
+        return Serializers.readVarint(ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    private static final class Writer<K extends Comparable<K>, V> {
+        private final DataOutputStream out;
+        private final Serializer<K> keySerializer;
+        private final Serializer<V> valueSerializer;
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        Writer(DataOutputStream out, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            this.out = out;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+        }
+
+        void write(BTreeNode<K, V> node) throws IOException {
+            int n = node.getNumOfKeys();
+            int length = 1 + Serializers.varintSize(n);
+            for (int i = 0; i < n; i++)
+                length += keySerializer.sizeOf(node.getKey(i)) + valueSerializer.sizeOf(node.getValue(i));
+            int total = Serializers.varintSize(length) + length;
+            if (buffer.capacity() < total) buffer = ByteBuffer.allocate(Math.max(total, 2 * buffer.capacity()));
+            buffer.clear();
+            Serializers.writeVarint(length, buffer);
+            buffer.put((byte) (node.isLeaf() ? 1 : 0));
+            Serializers.writeVarint(n, buffer);
+            for (int i = 0; i < n; i++)
+                keySerializer.write(node.getKey(i), buffer);
+            for (int i = 0; i < n; i++)
+                valueSerializer.write(node.getValue(i), buffer);
+            out.write(buffer.array(), 0, total);
+            if (!node.isLeaf())
+                for (int i = 0; i <= n; i++)
+                    write(node.getChild(i));
+        }
+    }
+
+    private static final class Reader<K extends Comparable<K>, V> {
+        private final DataInputStream in;
+        private final BTree<K, V> tree;
+        private final int minimumDegree;
+        private final Serializer<K> keySerializer;
+        private final Serializer<V> valueSerializer;
+        private byte[] bytes = new byte[256];
+        /* depth of the first leaf, which every other leaf must share */
+        private int leafDepth = -1;
+
+        Reader(DataInputStream in, BTree<K, V> tree, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            this.in = in;
+            this.tree = tree;
+            minimumDegree = tree.getMinimumDegree();
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+        }
+
+        BTreeNode<K, V> read(int depth, boolean isRoot) throws IOException {
+            int length = readVarint(in);
+            if (length < 2) LocalException.throwRunTimeErrorException();
+            // the buffer grows only as the bytes arrive, so a corrupt length runs into the end of the stream
+            // instead of allocating whatever it says
+            int read = 0;
+            while (read < length) {
+                if (read == bytes.length) bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+                int end = Math.min(length, bytes.length);
+                in.readFully(bytes, read, end - read);
+                read = end;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            BTreeNode<K, V> node = null;
+            try {
+                boolean leaf = buffer.get() != 0;
+                int n = Serializers.readVarint(buffer);
+                if (n > 2 * minimumDegree - 1 || n < (isRoot ? 1 : minimumDegree - 1))
+                    LocalException.throwRunTimeErrorException();
+                node = tree.newNode(leaf);
+                for (int i = 0; i < n; i++)
+                    node.insertEntry(i, keySerializer.read(buffer), null);
+                for (int i = 0; i < n; i++)
+                    node.setValue(i, valueSerializer.read(buffer));
+                if (buffer.hasRemaining()) LocalException.throwRunTimeErrorException();
+            } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                throw new IOException("Malformed node", e);
+            }
+            if (node.isLeaf()) {
+                if (leafDepth == -1) leafDepth = depth;
+                if (leafDepth != depth) LocalException.throwRunTimeErrorException();
+            } else {
+                for (int i = 0; i <= node.getNumOfKeys(); i++)
+                    node.insertChild(i, read(depth + 1, false));
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A fixed number of page frames in front of a FileChannel, allocated once off-heap, so its memory cost does not
+ * depend on the size of the file. A page is read on the pin that misses it and written back when its frame is
+ * reused or on flush, and only if it was unpinned dirty.
+ * Frames are reused following CLOCK: the hand skips pinned frames and gives every recently pinned frame a second
+ * chance, so the pages pinned on every descent (the upper levels of a tree) stay while cold leaves come and go.
+ * Not thread-safe.
+ */
+class BufferPool {
+    private static final int NO_PAGE = -1;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final long firstPageOffset;
+    private final ByteBuffer[] frames;
+    private final int[] pageOfFrame;
+    private final int[] pinCount;
+    private final boolean[] dirty;
+    private final boolean[] referenced;
+    private final Map<Integer, Integer> frameOfPage = new HashMap<>();
+    private int hand;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param firstPageOffset the file offset of page 0, page i being at firstPageOffset + i * pageSize
+     * @param capacity        the number of frames
+     */
+    BufferPool(FileChannel channel, int pageSize, long firstPageOffset, int capacity) {
+        if (capacity < 1) LocalException.throwRunTimeErrorException();
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.firstPageOffset = firstPageOffset;
+        frames = new ByteBuffer[capacity];
+        ByteBuffer memory = ByteBuffer.allocateDirect(pageSize * capacity);
+        for (int i = 0; i < capacity; i++) {
+            memory.limit((i + 1) * pageSize).position(i * pageSize);
+            frames[i] = memory.slice();
+        }
+        pageOfFrame = new int[capacity];
+        Arrays.fill(pageOfFrame, NO_PAGE);
+        pinCount = new int[capacity];
+        dirty = new boolean[capacity];
+        referenced = new boolean[capacity];
+    }
+
+    /**
+     * @return a buffer over the page, valid until the matching unpin
+     */
+    ByteBuffer pin(int pageId) {
+        Integer frame = frameOfPage.get(pageId);
+        if (frame == null) {
+            misses++;
+            frame = victim();
+            load(frame, pageId);
+        } else {
+            hits++;
+        }
+        pinCount[frame]++;
+        referenced[frame] = true;
+        return frames[frame].duplicate();
+    }
+
+    void unpin(int pageId, boolean modified) {
+        Integer frame = frameOfPage.get(pageId);
+        if (frame == null || pinCount[frame] == 0) LocalException.throwRunTimeErrorException();
+        pinCount[frame]--;
+        if (modified) dirty[frame] = true;
+    }
+
+    /**
+     * Writes back every dirty page, pinned or not.
+     */
+    void flush() {
+        for (int frame = 0; frame < frames.length; frame++)
+            if (dirty[frame]) writeBack(frame);
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return an empty frame, evicting the first unpinned page that was not pinned since the hand last passed it
+     */
+    private int victim() {
+        // two turns: the first may only clear reference bits
+        for (int scanned = 0; scanned < 2 * frames.length; scanned++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (pageOfFrame[frame] == NO_PAGE) return frame;
+            if (pinCount[frame] > 0) continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (dirty[frame]) writeBack(frame);
+            frameOfPage.remove(pageOfFrame[frame]);
+            pageOfFrame[frame] = NO_PAGE;
+            return frame;
+        }
+        // every frame is pinned
+        LocalException.throwRunTimeErrorException();
+        return NO_PAGE;
+    }
+
+    private void load(int frame, int pageId) {
+        ByteBuffer buffer = frames[frame].duplicate();
+        long offset = firstPageOffset + (long) pageId * pageSize;
+        try {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset + buffer.position());
+                if (read < 0) break;
+            }
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+        // past the end of the file
+        while (buffer.hasRemaining())
+            buffer.put((byte) 0);
+        pageOfFrame[frame] = pageId;
+        frameOfPage.put(pageId, frame);
+        dirty[frame] = false;
+    }
+
+    private void writeBack(int frame) {
+        ByteBuffer buffer = frames[frame].duplicate();
+        long offset = firstPageOffset + (long) pageOfFrame[frame] * pageSize;
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer, offset + buffer.position());
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+        dirty[frame] = false;
+    }
+}
@@ -0,0 +1,463 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread-safe B-Tree using per-node read/write latches with top-down crabbing.
+ *
+ * Readers hold at most two read latches at a time (parent, then child) so they run in parallel with each other
+ * and with writers working in other subtrees. Writers restructure on the way down, so an ancestor latch is released
+ * as soon as the child is known to be safe: for insert once the child is not full (full children are split first),
+ * for delete once the child has more than minKeys keys (thin children borrow or merge first).
+ * Latches are always taken parent before child, so there is no lock-order cycle.
+ *
+ * In optimistic mode each node's StampedLock doubles as a version counter. search descends without writing to shared
+ * memory: it reads a node's version, reads the node, reads the child's version and then validates the parent's,
+ * restarting from the root if a concurrent split, merge or rotation changed anything on the way.
+ * insert descends the same way and only write-locks the nodes it changes, converting the version it read into a
+ * write lock so that a change since the read forces a restart: the leaf it inserts into, or a parent and its full
+ * child while splitting. delete removes from a leaf that can spare a key the same way and falls back to crabbing
+ * when it has to restructure. After a few failed attempts every operation falls back to crabbing, so writers
+ * cannot starve a reader forever.
+ *
+ * Package-private, as the package exposes a single public IBTree implementation; created through
+ * BTree.newConcurrentTree.
+ */
+class ConcurrentBTree<K extends Comparable<K>, V> implements IBTree<K, V> {
+    private final int minimumDegree;
+    private final int maxKeys;
+    private final int minKeys;
+    private final boolean optimistic;
+    /* guards the root reference itself, which changes on a root split or when the root is merged away */
+    private final StampedLock rootLatch = new StampedLock();
+    private Node<K, V> root;
+
+    private static final int OPTIMISTIC_ATTEMPTS = 8;
+    /* returned by the optimistic paths when a validation failed and the operation has to start over */
+    private static final Object RESTART = new Object();
+
+    ConcurrentBTree(int minimumDegree) {
+        this(minimumDegree, false);
+    }
+
+    /**
+     * @param optimistic whether to use optimistic lock coupling for search, insert and non-restructuring deletes
+     */
+    ConcurrentBTree(int minimumDegree, boolean optimistic) {
+        if (minimumDegree < 2) LocalException.throwRunTimeErrorException();
+        this.minimumDegree = minimumDegree;
+        maxKeys = 2 * minimumDegree - 1;
+        minKeys = minimumDegree - 1;
+        this.optimistic = optimistic;
+    }
+
+    @Override
+    public int getMinimumDegree() {
+        return minimumDegree;
+    }
+
+    /**
+     * The returned node is not latched, so it is only meaningful while no writer is running.
+     */
+    @Override
+    public IBTreeNode<K, V> getRoot() {
+        rootLatch.asReadLock().lock();
+        try {
+            return root;
+        } finally {
+            rootLatch.asReadLock().unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V search(K key) {
+        InputChecker.checkNullValue(key);
+        if (optimistic) {
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                Object result = optimisticSearch(key);
+                if (result != RESTART) return (V) result;
+            }
+        }
+        rootLatch.asReadLock().lock();
+        Node<K, V> node = root;
+        if (node == null) {
+            rootLatch.asReadLock().unlock();
+            return null;
+        }
+        node.latch.asReadLock().lock();
+        rootLatch.asReadLock().unlock();
+        while (true) {
+            int i = node.findKey(key);
+            if (i >= 0 || node.isLeaf()) {
+                V value = i >= 0 ? node.getValue(i) : null;
+                node.latch.asReadLock().unlock();
+                return value;
+            }
+            Node<K, V> child = child(node, -i - 1);
+            child.latch.asReadLock().lock();
+            node.latch.asReadLock().unlock();
+            node = child;
+        }
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        InputChecker.checkNullValue(key, value);
+        if (optimistic) {
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                Object result = optimisticInsert(key, value);
+                if (result == Boolean.TRUE) return;
+                if (result == Boolean.FALSE) break;
+            }
+        }
+        rootLatch.asWriteLock().lock();
+        if (root == null) {
+            root = new Node<>(minimumDegree, true);
+            root.insertEntry(0, key, value);
+            rootLatch.asWriteLock().unlock();
+            return;
+        }
+        Node<K, V> node = root;
+        node.latch.asWriteLock().lock();
+        if (node.getNumOfKeys() == maxKeys) {
+            Node<K, V> newRoot = new Node<>(minimumDegree, false);
+            newRoot.latch.asWriteLock().lock();
+            newRoot.insertChild(0, node);
+            split(newRoot, 0);
+            node.latch.asWriteLock().unlock();
+            root = newRoot;
+            node = newRoot;
+        }
+        // the root is not full any more, so it cannot change under this insertion
+        rootLatch.asWriteLock().unlock();
+
+        while (true) {
+            int i = node.findKey(key);
+            if (i >= 0) {
+                node.latch.asWriteLock().unlock();
+                return;
+            }
+            i = -i - 1;
+            if (node.isLeaf()) {
+                node.insertEntry(i, key, value);
+                node.latch.asWriteLock().unlock();
+                return;
+            }
+            Node<K, V> next = child(node, i);
+            next.latch.asWriteLock().lock();
+            if (next.getNumOfKeys() == maxKeys) {
+                split(node, i);
+                int cmp = key.compareTo(node.getKey(i));
+                if (cmp == 0) {
+                    next.latch.asWriteLock().unlock();
+                    node.latch.asWriteLock().unlock();
+                    return;
+                }
+                if (cmp > 0) {
+                    // the new sibling is only reachable through node, which is still latched
+                    Node<K, V> sibling = child(node, i + 1);
+                    sibling.latch.asWriteLock().lock();
+                    next.latch.asWriteLock().unlock();
+                    next = sibling;
+                }
+            }
+            node.latch.asWriteLock().unlock();
+            node = next;
+        }
+    }
+
+    @Override
+    public boolean delete(K key) {
+        InputChecker.checkNullValue(key);
+        if (optimistic) {
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                Object result = optimisticDelete(key);
+                if (result == Boolean.TRUE || result == Boolean.FALSE) return (Boolean) result;
+                if (result == null) break;
+            }
+        }
+        rootLatch.asWriteLock().lock();
+        if (root == null) {
+            rootLatch.asWriteLock().unlock();
+            return false;
+        }
+        Node<K, V> node = root;
+        node.latch.asWriteLock().lock();
+        boolean holdingRootLatch = true;
+        while (true) {
+            int i = node.findKey(key);
+            if (node.isLeaf()) {
+                if (i >= 0) node.removeEntry(i);
+                node.latch.asWriteLock().unlock();
+                if (holdingRootLatch) rootLatch.asWriteLock().unlock();
+                return i >= 0;
+            }
+            Node<K, V> next;
+            if (i >= 0) {
+                Node<K, V> left = child(node, i);
+                Node<K, V> right = child(node, i + 1);
+                left.latch.asWriteLock().lock();
+                right.latch.asWriteLock().lock();
+                if (left.getNumOfKeys() > minKeys) {
+                    right.latch.asWriteLock().unlock();
+                    if (holdingRootLatch) rootLatch.asWriteLock().unlock();
+                    moveExtremeEntry(left, true, node, i);
+                    node.latch.asWriteLock().unlock();
+                    return true;
+                }
+                if (right.getNumOfKeys() > minKeys) {
+                    left.latch.asWriteLock().unlock();
+                    if (holdingRootLatch) rootLatch.asWriteLock().unlock();
+                    moveExtremeEntry(right, false, node, i);
+                    node.latch.asWriteLock().unlock();
+                    return true;
+                }
+                // both children are thin: pull the key down into the merged child and keep looking for it there
+                merge(node, i, left, right);
+                right.latch.asWriteLock().unlock();
+                next = left;
+            } else {
+                next = makeThick(node, -i - 1);
+            }
+            if (holdingRootLatch) {
+                if (node == root && node.getNumOfKeys() == 0)
+                    root = next;
+                rootLatch.asWriteLock().unlock();
+                holdingRootLatch = false;
+            }
+            node.latch.asWriteLock().unlock();
+            node = next;
+        }
+    }
+
+    /*
+    ======================================================================================================================
+    Optimistic lock coupling. Node contents read under an optimistic stamp may be torn, so every read is validated
+    before it is acted upon and any exception thrown while reading a torn node is just another reason to restart.
+     */
+
+    /**
+     * @return the value (or null) once validated, RESTART otherwise
+     */
+    private Object optimisticSearch(K key) {
+        try {
+            long rootStamp = rootLatch.tryOptimisticRead();
+            Node<K, V> node = root;
+            if (node == null) return rootLatch.validate(rootStamp) ? null : RESTART;
+            long version = node.latch.tryOptimisticRead();
+            if (version == 0 || !rootLatch.validate(rootStamp)) return RESTART;
+            while (true) {
+                int i = node.findKey(key);
+                if (i >= 0 || node.isLeaf()) {
+                    V value = i >= 0 ? node.getValue(i) : null;
+                    return node.latch.validate(version) ? value : RESTART;
+                }
+                Node<K, V> child = child(node, -i - 1);
+                long childVersion = child.latch.tryOptimisticRead();
+                if (childVersion == 0 || !node.latch.validate(version)) return RESTART;
+                node = child;
+                version = childVersion;
+            }
+        } catch (RuntimeException torn) {
+            return RESTART;
+        }
+    }
+
+    /**
+     * @return TRUE when done, FALSE when the root itself needs work (empty or full) and the pessimistic path
+     * should take over, RESTART otherwise
+     */
+    private Object optimisticInsert(K key, V value) {
+        try {
+            long rootStamp = rootLatch.tryOptimisticRead();
+            Node<K, V> node = root;
+            if (node == null) return Boolean.FALSE;
+            long version = node.latch.tryOptimisticRead();
+            if (version == 0 || !rootLatch.validate(rootStamp)) return RESTART;
+            if (node.getNumOfKeys() == maxKeys) return node.latch.validate(version) ? Boolean.FALSE : RESTART;
+            // invariant: node is not full as of version
+            while (true) {
+                int i = node.findKey(key);
+                if (i >= 0) return node.latch.validate(version) ? Boolean.TRUE : RESTART;
+                i = -i - 1;
+                if (node.isLeaf()) {
+                    long stamp = node.latch.tryConvertToWriteLock(version);
+                    if (stamp == 0) return RESTART;
+                    node.insertEntry(i, key, value);
+                    node.latch.unlockWrite(stamp);
+                    return Boolean.TRUE;
+                }
+                Node<K, V> child = child(node, i);
+                long childVersion = child.latch.tryOptimisticRead();
+                if (childVersion == 0 || !node.latch.validate(version)) return RESTART;
+                if (child.getNumOfKeys() == maxKeys) {
+                    long stamp = node.latch.tryConvertToWriteLock(version);
+                    if (stamp == 0) return RESTART;
+                    long childStamp = child.latch.tryConvertToWriteLock(childVersion);
+                    if (childStamp == 0) {
+                        node.latch.unlockWrite(stamp);
+                        return RESTART;
+                    }
+                    split(node, i);
+                    child.latch.unlockWrite(childStamp);
+                    node.latch.unlockWrite(stamp);
+                    // splits are rare enough that starting over is simpler than re-reading the two halves
+                    return RESTART;
+                }
+                node = child;
+                version = childVersion;
+            }
+        } catch (RuntimeException torn) {
+            return RESTART;
+        }
+    }
+
+    /**
+     * Handles the common case of a key that is missing or sits in a leaf that can spare it.
+     * @return TRUE or FALSE when done, null when the delete has to restructure and the pessimistic path
+     * should take over, RESTART otherwise
+     */
+    private Object optimisticDelete(K key) {
+        try {
+            long rootStamp = rootLatch.tryOptimisticRead();
+            Node<K, V> node = root;
+            if (node == null) return rootLatch.validate(rootStamp) ? Boolean.FALSE : RESTART;
+            long version = node.latch.tryOptimisticRead();
+            if (version == 0 || !rootLatch.validate(rootStamp)) return RESTART;
+            boolean isRoot = true;
+            while (true) {
+                int i = node.findKey(key);
+                if (node.isLeaf()) {
+                    if (i < 0) return node.latch.validate(version) ? Boolean.FALSE : RESTART;
+                    if (!isRoot && node.getNumOfKeys() <= minKeys) return node.latch.validate(version) ? null : RESTART;
+                    long stamp = node.latch.tryConvertToWriteLock(version);
+                    if (stamp == 0) return RESTART;
+                    node.removeEntry(i);
+                    node.latch.unlockWrite(stamp);
+                    return Boolean.TRUE;
+                }
+                if (i >= 0) return node.latch.validate(version) ? null : RESTART;
+                Node<K, V> child = child(node, -i - 1);
+                long childVersion = child.latch.tryOptimisticRead();
+                if (childVersion == 0 || !node.latch.validate(version)) return RESTART;
+                node = child;
+                version = childVersion;
+                isRoot = false;
+            }
+        } catch (RuntimeException torn) {
+            return RESTART;
+        }
+    }
+
+    /*
+    ======================================================================================================================
+    Restructuring helpers. The caller holds the write latch of every node passed in.
+     */
+
+    @SuppressWarnings("unchecked")
+    private Node<K, V> child(Node<K, V> node, int idx) {
+        return (Node<K, V>) node.getChild(idx);
+    }
+
+    private void split(Node<K, V> parent, int idx) {
+        Node<K, V> target = child(parent, idx);
+        Node<K, V> newNode = new Node<>(minimumDegree, target.isLeaf());
+        newNode.appendFrom(target, minimumDegree);
+        K medianKey = target.getKey(minimumDegree - 1);
+        V medianValue = target.getValue(minimumDegree - 1);
+        target.removeEntry(minimumDegree - 1);
+        parent.insertEntry(idx, medianKey, medianValue);
+        parent.insertChild(idx + 1, newNode);
+    }
+
+    /**
+     * Write-latches the child at idx and makes sure it has more than minKeys keys, borrowing from a sibling
+     * or merging with one. The siblings are latched only for the duration of the fix.
+     * @return the latched child to descend into
+     */
+    private Node<K, V> makeThick(Node<K, V> parent, int idx) {
+        Node<K, V> node = child(parent, idx);
+        node.latch.asWriteLock().lock();
+        if (node.getNumOfKeys() > minKeys) return node;
+        if (idx > 0) {
+            Node<K, V> left = child(parent, idx - 1);
+            left.latch.asWriteLock().lock();
+            if (left.getNumOfKeys() > minKeys) {
+                borrowFromLeft(parent, idx, left, node);
+                left.latch.asWriteLock().unlock();
+                return node;
+            }
+            if (idx == parent.getNumOfKeys()) {
+                merge(parent, idx - 1, left, node);
+                node.latch.asWriteLock().unlock();
+                return left;
+            }
+            left.latch.asWriteLock().unlock();
+        }
+        Node<K, V> right = child(parent, idx + 1);
+        right.latch.asWriteLock().lock();
+        if (right.getNumOfKeys() > minKeys)
+            borrowFromRight(parent, idx, node, right);
+        else
+            merge(parent, idx, node, right);
+        right.latch.asWriteLock().unlock();
+        return node;
+    }
+
+    /**
+     * Removes the largest (or smallest) entry of the subtree of node and writes it at slot idx of target,
+     * thickening children on the way down so the removal never needs to walk back up.
+     * node is latched and has more than minKeys keys; every latch taken here is released before returning.
+     */
+    private void moveExtremeEntry(Node<K, V> node, boolean largest, Node<K, V> target, int idx) {
+        while (!node.isLeaf()) {
+            Node<K, V> next = makeThick(node, largest ? node.getNumOfKeys() : 0);
+            node.latch.asWriteLock().unlock();
+            node = next;
+        }
+        int slot = largest ? node.getNumOfKeys() - 1 : 0;
+        target.setEntry(idx, node.getKey(slot), node.getValue(slot));
+        node.removeEntry(slot);
+        node.latch.asWriteLock().unlock();
+    }
+
+    private void borrowFromLeft(Node<K, V> parent, int idx, Node<K, V> left, Node<K, V> node) {
+        int last = left.getNumOfKeys() - 1;
+        node.insertEntry(0, parent.getKey(idx - 1), parent.getValue(idx - 1));
+        parent.setEntry(idx - 1, left.getKey(last), left.getValue(last));
+        left.removeEntry(last);
+        if (!left.isLeaf()) {
+            node.insertChild(0, left.getChild(last + 1));
+            left.removeChild(last + 1);
+        }
+    }
+
+    private void borrowFromRight(Node<K, V> parent, int idx, Node<K, V> node, Node<K, V> right) {
+        node.insertEntry(node.getNumOfKeys(), parent.getKey(idx), parent.getValue(idx));
+        parent.setEntry(idx, right.getKey(0), right.getValue(0));
+        right.removeEntry(0);
+        if (!right.isLeaf()) {
+            node.insertChild(node.getNumOfChildren(), right.getChild(0));
+            right.removeChild(0);
+        }
+    }
+
+    private void merge(Node<K, V> parent, int idx, Node<K, V> left, Node<K, V> right) {
+        left.insertEntry(left.getNumOfKeys(), parent.getKey(idx), parent.getValue(idx));
+        left.appendFrom(right, 0);
+        parent.removeEntry(idx);
+        parent.removeChild(idx + 1);
+    }
+
+    /**
+     * BTreeNode with its latch. Every write lock bumps the latch's version, which is what optimistic readers validate.
+     */
+    private static final class Node<K extends Comparable<K>, V> extends BTreeNode<K, V> {
+        private final StampedLock latch = new StampedLock();
+
+        Node(int minimumDegree, boolean leaf) {
+            super(minimumDegree, leaf);
+        }
+    }
+}
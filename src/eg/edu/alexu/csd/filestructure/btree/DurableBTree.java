@@ -0,0 +1,155 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * BTree whose mutations survive a crash. Every insert and delete is applied to an in-memory BTree and recorded
+ * in a {@link WriteAheadLog} as a logical record ([type][key] or [type][key][value]).
+ * A checkpoint freezes the tree to a new image file, renames it over the previous one and empties the log,
+ * so opening the directory loads the last image and replays the log written since.
+ * Replaying is idempotent (insert never overwrites, delete of a missing key does nothing), which makes a crash
+ * between the rename and the truncation of the log harmless.
+ * With synchronous commit each mutation returns once its record is on disk, sharing the fsync with the concurrent
+ * ones; without it, mutations return at once and a crash loses at most the last sync interval.
+ * Thread-safe: mutations and searches are serialized, only the wait for the disk happens outside the lock.
+ *
+ * Package-private, as the package exposes a single public IBTree implementation; opened through BTree.openDurable.
+ */
+class DurableBTree<K extends Comparable<K>, V> implements IDurableBTree<K, V> {
+    static final String LOG_FILE = "wal";
+    static final String CHECKPOINT_FILE = "checkpoint";
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+
+    private final Path directory;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final boolean synchronousCommit;
+    private final BTree<K, V> tree;
+    private final WriteAheadLog log;
+
+    /**
+     * Opens the tree kept in the directory, creating the directory if needed.
+     * @param maxBatch           see {@link WriteAheadLog}
+     * @param syncIntervalMillis see {@link WriteAheadLog}
+     * @param synchronousCommit  whether mutations wait for their log record to be on disk
+     */
+    DurableBTree(Path directory, int minimumDegree, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                 int maxBatch, long syncIntervalMillis, boolean synchronousCommit) {
+        InputChecker.checkNullValue(directory, keySerializer, valueSerializer);
+        this.directory = directory;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.synchronousCommit = synchronousCommit;
+        tree = new BTree<>(minimumDegree);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint)) {
+            FrozenBTree<K, V> image = new FrozenBTree<>(checkpoint, keySerializer, valueSerializer);
+            if (image.getMinimumDegree() != minimumDegree) LocalException.throwRunTimeErrorException();
+            tree.bulkLoad(image.entries(), 1);
+        }
+        log = new WriteAheadLog(directory.resolve(LOG_FILE), maxBatch, syncIntervalMillis, this::redo);
+    }
+
+    @Override
+    public int getMinimumDegree() {
+        return tree.getMinimumDegree();
+    }
+
+    /**
+     * The returned node is only meaningful while no mutation is running.
+     */
+    @Override
+    public synchronized IBTreeNode<K, V> getRoot() {
+        return tree.getRoot();
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        InputChecker.checkNullValue(key, value);
+        ByteBuffer record = ByteBuffer.allocate(1 + keySerializer.sizeOf(key) + valueSerializer.sizeOf(value));
+        record.put(INSERT);
+        keySerializer.write(key, record);
+        valueSerializer.write(value, record);
+        long sequence;
+        synchronized (this) {
+            if (tree.putIfAbsent(key, value) != null) return;
+            sequence = log.append(record.array());
+        }
+        if (synchronousCommit) log.awaitDurable(sequence);
+    }
+
+    @Override
+    public synchronized V search(K key) {
+        return tree.search(key);
+    }
+
+    @Override
+    public boolean delete(K key) {
+        InputChecker.checkNullValue(key);
+        ByteBuffer record = ByteBuffer.allocate(1 + keySerializer.sizeOf(key));
+        record.put(DELETE);
+        keySerializer.write(key, record);
+        long sequence;
+        synchronized (this) {
+            if (!tree.delete(key)) return false;
+            sequence = log.append(record.array());
+        }
+        if (synchronousCommit) log.awaitDurable(sequence);
+        return true;
+    }
+
+    @Override
+    public void sync() {
+        log.sync();
+    }
+
+    /**
+     * Writes the tree to a new image and empties the log. Mutations wait meanwhile.
+     */
+    @Override
+    public synchronized void checkpoint() {
+        // freezing renames the new image over the previous one and forces the rename to disk,
+        // which must happen before the log it replaces is dropped
+        tree.freeze(directory.resolve(CHECKPOINT_FILE), keySerializer, valueSerializer);
+        log.truncate();
+    }
+
+    /**
+     * Checkpoints and closes the log.
+     */
+    @Override
+    public void close() {
+        checkpoint();
+        log.close();
+    }
+
+    /**
+     * Simulates a crash for tests, losing whatever the log has not committed yet.
+     */
+    void crash() {
+        log.crash();
+    }
+
+    /**
+     * Applies a log record during recovery.
+     */
+    private void redo(ByteBuffer record) {
+        byte type = record.get();
+        K key = keySerializer.read(record);
+        if (type == INSERT)
+            tree.insert(key, valueSerializer.read(record));
+        else if (type == DELETE)
+            tree.delete(key);
+        else
+            LocalException.throwRunTimeErrorException();
+    }
+}
@@ -0,0 +1,149 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Pages of a file, accessed through a {@link BufferPool}. The first page-sized block of the file is the store header
+ * (page size, number of pages, free list and root page) and page i follows at offset (i + 1) * pageSize.
+ * Freed pages are chained into a free list through their first bytes.
+ * Changes reach the file when their frame is evicted and are durable once {@link #flush} returns; a crash before
+ * that may leave the file inconsistent.
+ * Not thread-safe.
+ */
+class FilePageStore implements PageStore {
+    private static final int NO_PAGE = -1;
+    private static final int MAGIC = 0x42545046;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final int pageSize;
+    private int numberOfPages;
+    private int freeList = NO_PAGE;
+    private int rootPage = NO_PAGE;
+
+    /**
+     * Opens the file, creating it if it does not exist.
+     * @param pageSize  the size of a page, which must match the one of an existing file
+     * @param poolPages the number of pages the buffer pool keeps in memory, at least 2
+     */
+    FilePageStore(Path file, int pageSize, int poolPages) {
+        InputChecker.checkNullValue(file);
+        if (pageSize < HEADER_SIZE || poolPages < 2) LocalException.throwRunTimeErrorException();
+        this.pageSize = pageSize;
+        FileChannel opened = null;
+        try {
+            opened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (opened.size() > 0) readHeader(opened);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(opened);
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            LocalException.throwRunTimeErrorException(e);
+        }
+        channel = opened;
+        pool = new BufferPool(channel, pageSize, pageSize, poolPages);
+    }
+
+    @Override
+    public int pageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public int allocate() {
+        if (freeList == NO_PAGE) return numberOfPages++;
+        int pageId = freeList;
+        ByteBuffer page = pool.pin(pageId);
+        freeList = page.getInt(0);
+        pool.unpin(pageId, false);
+        return pageId;
+    }
+
+    @Override
+    public void free(int pageId) {
+        checkPage(pageId);
+        ByteBuffer page = pool.pin(pageId);
+        page.putInt(0, freeList);
+        pool.unpin(pageId, true);
+        freeList = pageId;
+    }
+
+    @Override
+    public ByteBuffer pin(int pageId) {
+        checkPage(pageId);
+        return pool.pin(pageId);
+    }
+
+    @Override
+    public void unpin(int pageId, boolean dirty) {
+        pool.unpin(pageId, dirty);
+    }
+
+    @Override
+    public int getRootPage() {
+        return rootPage;
+    }
+
+    @Override
+    public void setRootPage(int pageId) {
+        rootPage = pageId;
+    }
+
+    /**
+     * Writes back the dirty pages and the header and forces them to the disk.
+     */
+    @Override
+    public void flush() {
+        pool.flush();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(pageSize).putInt(numberOfPages).putInt(freeList).putInt(rootPage).flip();
+        try {
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            channel.force(false);
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!channel.isOpen()) return;
+        try {
+            flush();
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    BufferPool getBufferPool() {
+        return pool;
+    }
+
+    private void readHeader(FileChannel file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining())
+            if (file.read(header, header.position()) < 0) LocalException.throwRunTimeErrorException();
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != pageSize) LocalException.throwRunTimeErrorException();
+        numberOfPages = header.getInt();
+        freeList = header.getInt();
+        rootPage = header.getInt();
+    }
+
+    private void checkPage(int pageId) {
+        if (pageId < 0 || pageId >= numberOfPages) LocalException.throwRunTimeErrorException();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
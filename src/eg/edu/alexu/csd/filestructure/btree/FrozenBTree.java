@@ -0,0 +1,509 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only B-Tree answering from a memory-mapped file written by {@link BTree#freeze}, opened by {@link BTree#openFrozen}.
+ *
+ * The file is a sequence of fixed-size pages. Page 0 is the header: MAGIC, format version, page size, minimum degree,
+ * root page and number of entries. Every node starts on a page boundary and takes as many consecutive pages as
+ * it needs, children being written before their parent so that the parent refers to them by page number:
+ * <pre>
+ *   int leaf (1 or 0), int n,
+ *   int[n + 1] child pages (internal nodes only),
+ *   int[n + 1] key offsets, int[n + 1] value offsets (from the start of the node, the last one being the end),
+ *   key bytes, value bytes
+ * </pre>
+ * so the keys of a node are contiguous and a lookup only touches the offsets and the keys it compares.
+ * Nothing is decoded up front: a search decodes the keys its binary searches probe and the value it returns,
+ * and the mapping is shared through the OS page cache with every other process reading the same file.
+ * Files are limited to 2 GB, the most a single mapping can hold. Safe for concurrent readers.
+ *
+ * Package-private, as the package exposes a single public IBTree implementation; reached through BTree.openFrozen.
+ */
+class FrozenBTree<K extends Comparable<K>, V> implements IOrderedBTree<K, V> {
+    static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final int MAGIC = 0x4254465A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES + Long.BYTES;
+    private static final int NO_PAGE = -1;
+
+    private final MappedByteBuffer file;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final int pageSize;
+    private final int minimumDegree;
+    private final int rootPage;
+    private final long size;
+
+    /**
+     * Maps a file written by {@link BTree#freeze}, with the serializers it was written with.
+     */
+    FrozenBTree(Path path, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        InputChecker.checkNullValue(path, keySerializer, valueSerializer);
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        MappedByteBuffer mapped = null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+                LocalException.throwRunTimeErrorException();
+            // the mapping stays valid once the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+        file = mapped;
+        if (file.getInt(0) != MAGIC || file.getInt(Integer.BYTES) != VERSION)
+            LocalException.throwRunTimeErrorException();
+        pageSize = file.getInt(2 * Integer.BYTES);
+        minimumDegree = file.getInt(3 * Integer.BYTES);
+        rootPage = file.getInt(4 * Integer.BYTES);
+        size = file.getLong(5 * Integer.BYTES);
+    }
+
+    @Override
+    public int getMinimumDegree() {
+        return minimumDegree;
+    }
+
+    /**
+     * @return a read-only view decoding the nodes as they are visited
+     */
+    @Override
+    public IBTreeNode<K, V> getRoot() {
+        return rootPage == NO_PAGE ? null : new NodeView(nodeOffset(rootPage));
+    }
+
+    /**
+     * Always throws, the tree is read-only.
+     */
+    @Override
+    public void insert(K key, V value) {
+        LocalException.throwRunTimeErrorException();
+    }
+
+    @Override
+    public V search(K key) {
+        InputChecker.checkNullValue(key);
+        if (rootPage == NO_PAGE) return null;
+        ByteBuffer buffer = file.duplicate();
+        int node = nodeOffset(rootPage);
+        while (true) {
+            int i = findKey(buffer, node, key);
+            if (i >= 0) return value(buffer, node, i);
+            if (isLeaf(node)) return null;
+            node = child(node, -i - 1);
+        }
+    }
+
+    /**
+     * Always throws, the tree is read-only.
+     */
+    @Override
+    public boolean delete(K key) {
+        LocalException.throwRunTimeErrorException();
+        return false;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    long size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> entries() {
+        return range(null, false, null, false);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return new Cursor(from, fromInclusive, to, toInclusive);
+    }
+
+    /*
+    ======================================================================================================================
+    Writing, called by BTree.freeze
+     */
+
+    /**
+     * Writes the tree rooted at root to a temporary file next to the given one and renames it over that file,
+     * so readers that mapped the previous file keep reading it and a failed write leaves it as it was.
+     * The nodes are forced to disk before the header is written, so a torn file is never valid.
+     */
+    static <K extends Comparable<K>, V> void write(BTreeNode<K, V> root, int minimumDegree, Path path, int pageSize,
+                                                   Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        InputChecker.checkNullValue(path, keySerializer, valueSerializer);
+        if (pageSize < HEADER_SIZE) LocalException.throwRunTimeErrorException();
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = null;
+        boolean written = false;
+        try {
+            temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                Writer<K, V> writer = new Writer<>(channel, pageSize, keySerializer, valueSerializer);
+                boolean empty = root == null || (root.isLeaf() && root.getNumOfKeys() == 0);
+                int rootPage = empty ? NO_PAGE : writer.writeNode(root);
+                channel.force(false);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(pageSize).putInt(minimumDegree).putInt(rootPage)
+                        .putLong(writer.entries).flip();
+                writer.writeFully(header, 0);
+                channel.force(false);
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            written = true;
+            forceDirectory(directory);
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        } finally {
+            if (!written && temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces a rename in the directory to disk.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException ignored) {
+            // directories cannot be opened on every platform, where the rename is then as durable as it gets
+        }
+    }
+
+    private static final class Writer<K extends Comparable<K>, V> {
+        private final FileChannel channel;
+        private final int pageSize;
+        private final Serializer<K> keySerializer;
+        private final Serializer<V> valueSerializer;
+        private ByteBuffer buffer;
+        /* page 0 is the header */
+        private long nextPage = 1;
+        private long entries;
+
+        Writer(FileChannel channel, int pageSize, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            this.channel = channel;
+            this.pageSize = pageSize;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            buffer = ByteBuffer.allocate(pageSize);
+        }
+
+        /**
+         * Writes the subtree, children first.
+         * @return the page of the node
+         */
+        int writeNode(BTreeNode<K, V> node) throws IOException {
+            int n = node.getNumOfKeys();
+            int[] children = new int[node.isLeaf() ? 0 : n + 1];
+            for (int i = 0; i < children.length; i++)
+                children[i] = writeNode(node.getChild(i));
+
+            int size = 2 * Integer.BYTES + (children.length + 2 * (n + 1)) * Integer.BYTES;
+            for (int i = 0; i < n; i++)
+                size += keySerializer.sizeOf(node.getKey(i)) + valueSerializer.sizeOf(node.getValue(i));
+            int pages = (size + pageSize - 1) / pageSize;
+            // pages are addressed by int offsets once mapped
+            if (nextPage + pages > Integer.MAX_VALUE / pageSize) LocalException.throwRunTimeErrorException();
+            if (buffer.capacity() < pages * pageSize) buffer = ByteBuffer.allocate(pages * pageSize);
+            buffer.clear();
+            buffer.putInt(node.isLeaf() ? 1 : 0).putInt(n);
+            for (int child : children)
+                buffer.putInt(child);
+            int keyOffsets = buffer.position();
+            int valueOffsets = keyOffsets + (n + 1) * Integer.BYTES;
+            buffer.position(valueOffsets + (n + 1) * Integer.BYTES);
+            for (int i = 0; i < n; i++) {
+                buffer.putInt(keyOffsets + i * Integer.BYTES, buffer.position());
+                keySerializer.write(node.getKey(i), buffer);
+            }
+            buffer.putInt(keyOffsets + n * Integer.BYTES, buffer.position());
+            for (int i = 0; i < n; i++) {
+                buffer.putInt(valueOffsets + i * Integer.BYTES, buffer.position());
+                valueSerializer.write(node.getValue(i), buffer);
+            }
+            buffer.putInt(valueOffsets + n * Integer.BYTES, buffer.position());
+            // pad to the page boundary
+            while (buffer.position() < pages * pageSize)
+                buffer.put((byte) 0);
+            buffer.flip();
+
+            long page = nextPage;
+            writeFully(buffer, page * pageSize);
+            nextPage += pages;
+            entries += n;
+            return (int) page;
+        }
+
+        void writeFully(ByteBuffer source, long position) throws IOException {
+            while (source.hasRemaining())
+                position += channel.write(source, position);
+        }
+    }
+
+    /*
+    ======================================================================================================================
+    Reading the mapped nodes. Every absolute offset below is an offset in the file.
+     */
+
+    private int nodeOffset(int page) {
+        return page * pageSize;
+    }
+
+    private boolean isLeaf(int node) {
+        return file.getInt(node) != 0;
+    }
+
+    private int numberOfKeys(int node) {
+        return file.getInt(node + Integer.BYTES);
+    }
+
+    private int child(int node, int idx) {
+        return nodeOffset(file.getInt(node + (2 + idx) * Integer.BYTES));
+    }
+
+    private int keyOffsets(int node) {
+        int n = numberOfKeys(node);
+        return node + (2 + (isLeaf(node) ? 0 : n + 1)) * Integer.BYTES;
+    }
+
+    private K key(ByteBuffer buffer, int node, int idx) {
+        buffer.position(node + file.getInt(keyOffsets(node) + idx * Integer.BYTES));
+        return keySerializer.read(buffer);
+    }
+
+    private V value(ByteBuffer buffer, int node, int idx) {
+        int valueOffsets = keyOffsets(node) + (numberOfKeys(node) + 1) * Integer.BYTES;
+        buffer.position(node + file.getInt(valueOffsets + idx * Integer.BYTES));
+        return valueSerializer.read(buffer);
+    }
+
+    /**
+     * Same contract as BTreeNode.findKey: the slot of the key, or -(child index + 1) when it is not in the node.
+     */
+    private int findKey(ByteBuffer buffer, int node, K key) {
+        int low = 0;
+        int high = numberOfKeys(node) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = key(buffer, node, mid).compareTo(key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * In-order cursor with an explicit stack of (node, next key index) frames, as BTreeCursor.
+     */
+    private final class Cursor implements Iterator<Map.Entry<K, V>> {
+        private final ByteBuffer buffer = file.duplicate();
+        private final K end;
+        private final boolean endInclusive;
+        private int[] nodes = new int[8];
+        private int[] indexes = new int[8];
+        private int depth;
+
+        Cursor(K from, boolean fromInclusive, K to, boolean toInclusive) {
+            end = to;
+            endInclusive = toInclusive;
+            if (rootPage == NO_PAGE) return;
+            int node = nodeOffset(rootPage);
+            if (from == null) {
+                pushLeftmostPath(node);
+            } else {
+                while (true) {
+                    int i = findKey(buffer, node, from);
+                    if (i >= 0) {
+                        // the child on the left only holds smaller keys, so the descent stops here
+                        push(node, fromInclusive ? i : i + 1);
+                        if (!fromInclusive && !isLeaf(node)) pushLeftmostPath(child(node, i + 1));
+                        break;
+                    }
+                    i = -i - 1;
+                    push(node, i);
+                    if (isLeaf(node)) break;
+                    node = child(node, i);
+                }
+            }
+            skipExhaustedFrames();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (depth == 0) return false;
+            if (end == null) return true;
+            int cmp = key(buffer, nodes[depth - 1], indexes[depth - 1]).compareTo(end);
+            return cmp < 0 || (cmp == 0 && endInclusive);
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            int node = nodes[depth - 1];
+            int i = indexes[depth - 1];
+            Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<>(key(buffer, node, i), value(buffer, node, i));
+            indexes[depth - 1] = i + 1;
+            if (!isLeaf(node)) pushLeftmostPath(child(node, i + 1));
+            skipExhaustedFrames();
+            return entry;
+        }
+
+        private void pushLeftmostPath(int node) {
+            while (true) {
+                push(node, 0);
+                if (isLeaf(node)) return;
+                node = child(node, 0);
+            }
+        }
+
+        private void skipExhaustedFrames() {
+            while (depth > 0 && indexes[depth - 1] >= numberOfKeys(nodes[depth - 1]))
+                depth--;
+        }
+
+        private void push(int node, int index) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                indexes = Arrays.copyOf(indexes, depth * 2);
+            }
+            nodes[depth] = node;
+            indexes[depth] = index;
+            depth++;
+        }
+    }
+
+    /**
+     * Read-only IBTreeNode over a mapped node.
+     */
+    private final class NodeView implements IBTreeNode<K, V> {
+        private final int node;
+
+        NodeView(int node) {
+            this.node = node;
+        }
+
+        @Override
+        public int getNumOfKeys() {
+            return numberOfKeys(node);
+        }
+
+        @Override
+        public void setNumOfKeys(int numOfKeys) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return FrozenBTree.this.isLeaf(node);
+        }
+
+        @Override
+        public void setLeaf(boolean isLeaf) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public List<K> getKeys() {
+            return new AbstractList<K>() {
+                @Override
+                public K get(int index) {
+                    checkIndex(index, size());
+                    return key(file.duplicate(), node, index);
+                }
+
+                @Override
+                public int size() {
+                    return numberOfKeys(node);
+                }
+            };
+        }
+
+        @Override
+        public void setKeys(List<K> keys) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public List<V> getValues() {
+            return new AbstractList<V>() {
+                @Override
+                public V get(int index) {
+                    checkIndex(index, size());
+                    return value(file.duplicate(), node, index);
+                }
+
+                @Override
+                public int size() {
+                    return numberOfKeys(node);
+                }
+            };
+        }
+
+        @Override
+        public void setValues(List<V> values) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public List<IBTreeNode<K, V>> getChildren() {
+            if (isLeaf()) return null;
+            return new AbstractList<IBTreeNode<K, V>>() {
+                @Override
+                public IBTreeNode<K, V> get(int index) {
+                    checkIndex(index, size());
+                    return new NodeView(child(node, index));
+                }
+
+                @Override
+                public int size() {
+                    return numberOfKeys(node) + 1;
+                }
+            };
+        }
+
+        @Override
+        public void setChildren(List<IBTreeNode<K, V>> children) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FrozenBTree.NodeView && ((FrozenBTree<?, ?>.NodeView) o).node == node;
+        }
+
+        @Override
+        public int hashCode() {
+            return node;
+        }
+
+        private void checkIndex(int index, int size) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
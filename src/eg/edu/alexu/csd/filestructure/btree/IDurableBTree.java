@@ -0,0 +1,23 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+/**
+ * A B-Tree whose mutations survive a crash. Must be closed, which checkpoints it.
+ */
+public interface IDurableBTree<K extends Comparable<K>, V> extends IBTree<K, V>, AutoCloseable {
+
+    /**
+     * Waits until every mutation so far is on disk.
+     */
+    void sync();
+
+    /**
+     * Writes the whole tree to a new image, so the mutations logged so far need not be replayed when it is reopened.
+     */
+    void checkpoint();
+
+    /**
+     * Checkpoints and releases the files. The tree cannot be used afterwards.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,22 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A B-Tree that can also be walked in key order.
+ */
+public interface IOrderedBTree<K extends Comparable<K>, V> extends IBTree<K, V> {
+
+    /**
+     * @return a lazy ascending cursor over all the entries. The tree must not be modified while it is in use.
+     */
+    Iterator<Map.Entry<K, V>> entries();
+
+    /**
+     * @param from the lower bound, null for none
+     * @param to   the upper bound, null for none
+     * @return a lazy ascending cursor over the entries between the bounds. The tree must not be modified while it is in use.
+     */
+    Iterator<Map.Entry<K, V>> range(K from, boolean fromInclusive, K to, boolean toInclusive);
+}
@@ -0,0 +1,18 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+/**
+ * A B-Tree whose nodes live in pages outside the Java heap. Must be closed to release them.
+ */
+public interface IPagedBTree<K extends Comparable<K>, V> extends IBTree<K, V>, AutoCloseable {
+
+    /**
+     * Makes the tree durable as far as its pages can be, which for a file means written and forced to disk.
+     */
+    void flush();
+
+    /**
+     * Releases the pages, writing a file's pages back first. The tree cannot be used afterwards.
+     */
+    @Override
+    void close();
+}
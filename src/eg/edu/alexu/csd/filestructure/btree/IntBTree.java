@@ -0,0 +1,107 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.Arrays;
+
+/**
+ * B-Tree from int keys to values, with the semantics of {@link IBTree}: insert keeps the value of a key
+ * already present, search returns null for a missing key, null values are rejected.
+ * Keys are kept in int arrays and compared as primitives, never boxed.
+ */
+public final class IntBTree<V> extends PrimitiveBTree {
+
+    public IntBTree(int minimumDegree) {
+        super(minimumDegree);
+    }
+
+    public void insert(int key, V value) {
+        InputChecker.checkNullValue(value);
+        IntNode node = (IntNode) rootForInsertion();
+        while (true) {
+            int i = node.find(key);
+            if (i >= 0) return;
+            i = -i - 1;
+            if (node.leaf) {
+                openSlot(node, i);
+                node.keys[i] = key;
+                node.values[i] = value;
+                size++;
+                return;
+            }
+            if (node.children[i].numberOfKeys == maxKeys) {
+                split(node, i);
+                if (key == node.keys[i]) return;
+                if (key > node.keys[i]) i++;
+            }
+            node = (IntNode) node.children[i];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V search(int key) {
+        IntNode node = (IntNode) root;
+        while (node != null) {
+            int i = node.find(key);
+            if (i >= 0) return (V) node.values[i];
+            node = node.leaf ? null : (IntNode) node.children[-i - 1];
+        }
+        return null;
+    }
+
+    public boolean delete(int key) {
+        IntNode node = (IntNode) root;
+        while (node != null) {
+            int i = node.find(key);
+            if (i >= 0) {
+                node = (IntNode) removeEntry(node, i);
+                if (node == null) return true;
+            } else {
+                node = node.leaf ? null : (IntNode) childForDeletion(node, -i - 1);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    Node newNode(boolean leaf) {
+        return new IntNode(minimumDegree, leaf);
+    }
+
+    private static final class IntNode extends Node {
+        final int[] keys;
+        final Object[] values;
+
+        IntNode(int minimumDegree, boolean leaf) {
+            super(minimumDegree, leaf);
+            keys = new int[2 * minimumDegree - 1];
+            values = new Object[2 * minimumDegree - 1];
+        }
+
+        /**
+         * @return the slot of the key, or -(i + 1) where i is the child to descend into
+         */
+        int find(int key) {
+            int low = 0;
+            int high = numberOfKeys - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midKey = keys[mid];
+                if (key > midKey) low = mid + 1;
+                else if (key < midKey) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+
+        @Override
+        void copySlots(Node src, int srcPos, int destPos, int length) {
+            IntNode source = (IntNode) src;
+            System.arraycopy(source.keys, srcPos, keys, destPos, length);
+            System.arraycopy(source.values, srcPos, values, destPos, length);
+        }
+
+        @Override
+        void clearSlots(int from, int to) {
+            Arrays.fill(values, from, to, null);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+/**
+ * B-Tree from int keys to int values, with the semantics of {@link IBTree}: insert keeps the value of a key
+ * already present. As a missing key cannot be told by a null value, search takes the value to return for it.
+ * Keys and values are kept in int arrays, never boxed.
+ */
+public final class IntIntBTree extends PrimitiveBTree {
+
+    public IntIntBTree(int minimumDegree) {
+        super(minimumDegree);
+    }
+
+    public void insert(int key, int value) {
+        IntNode node = (IntNode) rootForInsertion();
+        while (true) {
+            int i = node.find(key);
+            if (i >= 0) return;
+            i = -i - 1;
+            if (node.leaf) {
+                openSlot(node, i);
+                node.keys[i] = key;
+                node.values[i] = value;
+                size++;
+                return;
+            }
+            if (node.children[i].numberOfKeys == maxKeys) {
+                split(node, i);
+                if (key == node.keys[i]) return;
+                if (key > node.keys[i]) i++;
+            }
+            node = (IntNode) node.children[i];
+        }
+    }
+
+    /**
+     * @param absent the value to return if the key is missing
+     */
+    public int search(int key, int absent) {
+        IntNode node = (IntNode) root;
+        while (node != null) {
+            int i = node.find(key);
+            if (i >= 0) return node.values[i];
+            node = node.leaf ? null : (IntNode) node.children[-i - 1];
+        }
+        return absent;
+    }
+
+    public boolean contains(int key) {
+        IntNode node = (IntNode) root;
+        while (node != null) {
+            int i = node.find(key);
+            if (i >= 0) return true;
+            node = node.leaf ? null : (IntNode) node.children[-i - 1];
+        }
+        return false;
+    }
+
+    public boolean delete(int key) {
+        IntNode node = (IntNode) root;
+        while (node != null) {
+            int i = node.find(key);
+            if (i >= 0) {
+                node = (IntNode) removeEntry(node, i);
+                if (node == null) return true;
+            } else {
+                node = node.leaf ? null : (IntNode) childForDeletion(node, -i - 1);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    Node newNode(boolean leaf) {
+        return new IntNode(minimumDegree, leaf);
+    }
+
+    private static final class IntNode extends Node {
+        final int[] keys;
+        final int[] values;
+
+        IntNode(int minimumDegree, boolean leaf) {
+            super(minimumDegree, leaf);
+            keys = new int[2 * minimumDegree - 1];
+            values = new int[2 * minimumDegree - 1];
+        }
+
+        /**
+         * @return the slot of the key, or -(i + 1) where i is the child to descend into
+         */
+        int find(int key) {
+            int low = 0;
+            int high = numberOfKeys - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midKey = keys[mid];
+                if (key > midKey) low = mid + 1;
+                else if (key < midKey) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+
+        @Override
+        void copySlots(Node src, int srcPos, int destPos, int length) {
+            IntNode source = (IntNode) src;
+            System.arraycopy(source.keys, srcPos, keys, destPos, length);
+            System.arraycopy(source.values, srcPos, values, destPos, length);
+        }
+    }
+}
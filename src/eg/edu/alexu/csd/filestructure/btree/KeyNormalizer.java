@@ -0,0 +1,14 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+/**
+ * Maps keys to longs whose order agrees with the order of the keys, so that nodes can compare keys as primitives
+ * and call compareTo only when the longs are equal. See {@link KeyNormalizers} for the common types.
+ */
+public interface KeyNormalizer<K> {
+
+    /**
+     * @return a long such that a.compareTo(b) < 0 implies normalize(a) <= normalize(b), compared as signed longs.
+     * The fewer distinct keys share a long, the fewer compareTo calls remain.
+     */
+    long normalize(K key);
+}
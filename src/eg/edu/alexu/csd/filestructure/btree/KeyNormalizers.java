@@ -0,0 +1,32 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+/**
+ * Key normalizers for the key types used across the package.
+ */
+public final class KeyNormalizers {
+
+    private KeyNormalizers() {
+    }
+
+    /**
+     * Exact: integers never need compareTo.
+     */
+    public static final KeyNormalizer<Integer> INTEGER = key -> key;
+
+    /**
+     * Exact: longs never need compareTo.
+     */
+    public static final KeyNormalizer<Long> LONG = key -> key;
+
+    /**
+     * The first four chars, 16 bits each, shorter strings being padded with zeros.
+     * Strings only tie when they share their first four chars.
+     */
+    public static final KeyNormalizer<String> STRING = key -> {
+        long normalized = 0;
+        for (int i = 0; i < 4; i++)
+            normalized = normalized << 16 | (i < key.length() ? key.charAt(i) : 0);
+        // chars are unsigned, flipping the top bit makes the signed order of the longs follow them
+        return normalized ^ Long.MIN_VALUE;
+    };
+}
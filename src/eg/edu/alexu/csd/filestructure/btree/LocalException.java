@@ -6,4 +6,8 @@ public class LocalException {
      static void throwRunTimeErrorException() {
         throw new RuntimeErrorException(new Error());
     }
+
+    static void throwRunTimeErrorException(Throwable cause) {
+        throw new RuntimeErrorException(new Error(cause));
+    }
 }
@@ -0,0 +1,90 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Node keeping, next to each key, the long a {@link KeyNormalizer} maps it to.
+ * A search binary searches the longs and only calls compareTo on the keys whose long equals the one of the key
+ * looked for, so most of a descent compares primitives instead of calling compareTo through an interface and
+ * dereferencing the keys.
+ */
+class NormalizedKeyNode<K extends Comparable<K>, V> extends BTreeNode<K, V> {
+    private final KeyNormalizer<K> normalizer;
+    private long[] normalizedKeys;
+
+    NormalizedKeyNode(int minimumDegree, boolean leaf, KeyNormalizer<K> normalizer) {
+        super(minimumDegree, leaf);
+        this.normalizer = normalizer;
+        normalizedKeys = new long[2 * minimumDegree - 1];
+    }
+
+    private NormalizedKeyNode(NormalizedKeyNode<K, V> src) {
+        super(src);
+        normalizer = src.normalizer;
+        normalizedKeys = src.normalizedKeys.clone();
+    }
+
+    @Override
+    int findKey(K key) {
+        long normalized = normalizer.normalize(key);
+        int low = 0;
+        int high = getNumOfKeys() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long other = normalizedKeys[mid];
+            int cmp = normalized != other ? Long.compare(normalized, other) : key.compareTo(getKey(mid));
+            if (cmp > 0) low = mid + 1;
+            else if (cmp < 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public void setKeys(List<K> keys) {
+        super.setKeys(keys);
+        for (int i = 0; i < keys.size(); i++)
+            normalizedKeys[i] = normalizer.normalize(keys.get(i));
+    }
+
+    @Override
+    void setKey(int idx, K key) {
+        super.setKey(idx, key);
+        normalizedKeys[idx] = normalizer.normalize(key);
+    }
+
+    @Override
+    void insertKey(int idx, K key) {
+        super.insertKey(idx, key);
+        int tail = getNumOfKeys() - idx;
+        if (tail > 0)
+            System.arraycopy(normalizedKeys, idx, normalizedKeys, idx + 1, tail);
+        normalizedKeys[idx] = normalizer.normalize(key);
+    }
+
+    @Override
+    void removeKey(int idx) {
+        super.removeKey(idx);
+        int tail = getNumOfKeys() - idx - 1;
+        if (tail > 0)
+            System.arraycopy(normalizedKeys, idx + 1, normalizedKeys, idx, tail);
+    }
+
+    @Override
+    void appendKeys(BTreeNode<K, V> src, int from, int len) {
+        super.appendKeys(src, from, len);
+        System.arraycopy(((NormalizedKeyNode<K, V>) src).normalizedKeys, from, normalizedKeys, getNumOfKeys(), len);
+    }
+
+    @Override
+    void growKeys(int capacity) {
+        super.growKeys(capacity);
+        normalizedKeys = Arrays.copyOf(normalizedKeys, capacity);
+    }
+
+    @Override
+    BTreeNode<K, V> copy() {
+        return new NormalizedKeyNode<>(this);
+    }
+}
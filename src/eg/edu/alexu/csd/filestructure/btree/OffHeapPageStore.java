@@ -0,0 +1,111 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pages carved out of direct ByteBuffer slabs, so their content lives outside the Java heap and is never scanned
+ * by the garbage collector. Slabs are allocated as needed and kept until the store is closed; freed pages go on a
+ * free list threaded through the pages themselves, so the heap only holds one reference per slab.
+ */
+class OffHeapPageStore implements PageStore {
+    private static final int NO_PAGE = -1;
+
+    private final int pageSize;
+    private final int pagesPerSlab;
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    private int nextUnused;
+    private int freeList = NO_PAGE;
+    private int rootPage = NO_PAGE;
+
+    /**
+     * @param pageSize     the size of a page in bytes
+     * @param pagesPerSlab the number of pages allocated at once
+     */
+    OffHeapPageStore(int pageSize, int pagesPerSlab) {
+        if (pageSize < Integer.BYTES || pagesPerSlab < 1 || (long) pageSize * pagesPerSlab > Integer.MAX_VALUE)
+            LocalException.throwRunTimeErrorException();
+        this.pageSize = pageSize;
+        this.pagesPerSlab = pagesPerSlab;
+    }
+
+    @Override
+    public int pageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public int allocate() {
+        checkOpen();
+        if (freeList != NO_PAGE) {
+            int pageId = freeList;
+            freeList = slab(pageId).getInt(offset(pageId));
+            return pageId;
+        }
+        if (nextUnused == slabs.size() * pagesPerSlab)
+            slabs.add(ByteBuffer.allocateDirect(pageSize * pagesPerSlab));
+        return nextUnused++;
+    }
+
+    @Override
+    public void free(int pageId) {
+        checkPage(pageId);
+        slab(pageId).putInt(offset(pageId), freeList);
+        freeList = pageId;
+    }
+
+    @Override
+    public ByteBuffer pin(int pageId) {
+        checkPage(pageId);
+        ByteBuffer page = slab(pageId).duplicate();
+        int offset = offset(pageId);
+        page.limit(offset + pageSize).position(offset);
+        return page.slice();
+    }
+
+    @Override
+    public void unpin(int pageId, boolean dirty) {
+        // the buffer is the page itself, there is nothing to write back
+    }
+
+    @Override
+    public int getRootPage() {
+        return rootPage;
+    }
+
+    @Override
+    public void setRootPage(int pageId) {
+        rootPage = pageId;
+    }
+
+    @Override
+    public void flush() {
+        // nothing outlives the process
+    }
+
+    /**
+     * Drops the slabs. Their memory is returned once the buffers are collected.
+     */
+    @Override
+    public void close() {
+        slabs = null;
+    }
+
+    private ByteBuffer slab(int pageId) {
+        return slabs.get(pageId / pagesPerSlab);
+    }
+
+    private int offset(int pageId) {
+        return pageId % pagesPerSlab * pageSize;
+    }
+
+    private void checkPage(int pageId) {
+        checkOpen();
+        if (pageId < 0 || pageId >= nextUnused) LocalException.throwRunTimeErrorException();
+    }
+
+    private void checkOpen() {
+        if (slabs == null) LocalException.throwRunTimeErrorException();
+    }
+}
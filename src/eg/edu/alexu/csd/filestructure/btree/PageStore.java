@@ -0,0 +1,51 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size pages addressed by int ids, the storage behind {@link PagedBTree}.
+ * A page must be pinned while its buffer is in use and unpinned afterwards, saying whether it was modified.
+ */
+interface PageStore extends Closeable {
+
+    int pageSize();
+
+    /**
+     * @return the id of a page that is not in use. Its content is undefined.
+     */
+    int allocate();
+
+    /**
+     * Gives the page back. It must not be pinned.
+     */
+    void free(int pageId);
+
+    /**
+     * @return a buffer over the page, position 0 and limit pageSize(), valid until the matching unpin
+     */
+    ByteBuffer pin(int pageId);
+
+    void unpin(int pageId, boolean dirty);
+
+    /**
+     * @return the page set by {@link #setRootPage}, or -1 for a new store
+     */
+    int getRootPage();
+
+    /**
+     * Remembers the entry point of the data kept in the store, so it can be found again once the store is reopened.
+     */
+    void setRootPage(int pageId);
+
+    /**
+     * Makes every change so far durable, for the stores that have something to make durable.
+     */
+    void flush();
+
+    /**
+     * Flushes and releases the store.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,607 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * B-Tree whose nodes live in the pages of a {@link PageStore} instead of the Java heap.
+ * Each node is a record of bytes addressed by the id of its first page: a leaf flag, the number of keys,
+ * the child page ids and then the serialized keys and values. A record larger than a page continues in
+ * overflow pages chained through the page headers, so keys and values may have any size.
+ * Operations decode the nodes on their path into short-lived heap copies and write back the ones they change,
+ * so the heap used does not grow with the number of entries. The algorithms are those of BTree:
+ * single-pass insertion splitting full nodes on the way down, and deletion rebalancing on the way back up.
+ * The store's root page holds the tree's own header (minimum degree and root node), so a tree over a persistent
+ * store picks up where it was left when it is constructed again over the reopened store.
+ *
+ * Package-private, as the package exposes a single public IBTree implementation; created through
+ * BTree.newOffHeapTree and BTree.openPaged.
+ */
+class PagedBTree<K extends Comparable<K>, V> implements IPagedBTree<K, V> {
+    private static final int NO_PAGE = -1;
+    /* next page of the record, then the number of record bytes in this page */
+    private static final int PAGE_HEADER = 2 * Integer.BYTES;
+    private static final int MAGIC = 0x42545245;
+    /* header page layout: MAGIC, minimum degree, root node */
+    private static final int DEGREE_OFFSET = Integer.BYTES;
+    private static final int ROOT_OFFSET = 2 * Integer.BYTES;
+
+    private final int minimumDegree;
+    private final int maxKeys;
+    private final int minKeys;
+    private final PageStore store;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final int headerPage;
+    private int root = NO_PAGE;
+    /* holds one encoded record at a time, grows to the largest node */
+    private ByteBuffer record = ByteBuffer.allocate(256);
+
+    /**
+     * Creates an empty tree in a new store, or opens the tree already kept in the store.
+     * The minimum degree must then be the one the tree was created with.
+     */
+    PagedBTree(int minimumDegree, PageStore store, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        if (minimumDegree < 2 || store.pageSize() < 3 * Integer.BYTES) LocalException.throwRunTimeErrorException();
+        InputChecker.checkNullValue(keySerializer, valueSerializer);
+        this.minimumDegree = minimumDegree;
+        maxKeys = 2 * minimumDegree - 1;
+        minKeys = minimumDegree - 1;
+        this.store = store;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        if (store.getRootPage() == NO_PAGE) {
+            headerPage = store.allocate();
+            writeHeader();
+            store.setRootPage(headerPage);
+        } else {
+            headerPage = store.getRootPage();
+            ByteBuffer header = store.pin(headerPage);
+            boolean valid = header.getInt(0) == MAGIC && header.getInt(DEGREE_OFFSET) == minimumDegree;
+            root = header.getInt(ROOT_OFFSET);
+            store.unpin(headerPage, false);
+            if (!valid) LocalException.throwRunTimeErrorException();
+        }
+    }
+
+    @Override
+    public int getMinimumDegree() {
+        return minimumDegree;
+    }
+
+    /**
+     * @return a read-only view decoding the nodes as they are visited, only meaningful until the next modification
+     */
+    @Override
+    public IBTreeNode<K, V> getRoot() {
+        return root == NO_PAGE ? null : new NodeView(read(root));
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        InputChecker.checkNullValue(key, value);
+        if (root == NO_PAGE) {
+            Node<K, V> node = newNode(true);
+            node.insertEntry(0, key, value);
+            write(node);
+            setRoot(node.id);
+            return;
+        }
+        Node<K, V> node = read(root);
+        if (node.numberOfKeys == maxKeys) {
+            Node<K, V> newRoot = newNode(false);
+            newRoot.insertChild(0, node.id);
+            split(newRoot, 0, node);
+            setRoot(newRoot.id);
+            node = newRoot;
+        }
+        while (true) {
+            int i = node.findKey(key);
+            if (i >= 0) return;
+            i = -i - 1;
+            if (node.leaf) {
+                node.insertEntry(i, key, value);
+                write(node);
+                return;
+            }
+            Node<K, V> child = read(node.children[i]);
+            if (child.numberOfKeys == maxKeys) {
+                Node<K, V> sibling = split(node, i, child);
+                int cmp = key.compareTo(node.getKey(i));
+                if (cmp == 0) return;
+                if (cmp > 0) child = sibling;
+            }
+            node = child;
+        }
+    }
+
+    @Override
+    public V search(K key) {
+        InputChecker.checkNullValue(key);
+        int page = root;
+        while (page != NO_PAGE) {
+            Node<K, V> node = read(page);
+            int i = node.findKey(key);
+            if (i >= 0) return node.getValue(i);
+            page = node.leaf ? NO_PAGE : node.children[-i - 1];
+        }
+        return null;
+    }
+
+    @Override
+    public boolean delete(K key) {
+        InputChecker.checkNullValue(key);
+        if (root == NO_PAGE) return false;
+        Node<K, V> node = read(root);
+        if (!delete(node, key)) return false;
+        if (node.numberOfKeys == 0 && !node.leaf) {
+            setRoot(node.children[0]);
+            freeChain(node.id);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the tree durable as far as the page store can.
+     */
+    @Override
+    public void flush() {
+        store.flush();
+    }
+
+    /**
+     * Closes the page store.
+     */
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    private void setRoot(int pageId) {
+        root = pageId;
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = store.pin(headerPage);
+        header.putInt(0, MAGIC);
+        header.putInt(DEGREE_OFFSET, minimumDegree);
+        header.putInt(ROOT_OFFSET, root);
+        store.unpin(headerPage, true);
+    }
+
+    /*
+    ======================================================================================================================
+    Tree algorithms on decoded nodes. They write back every node they change, except that fixChild and merge
+    leave the parent to their caller.
+     */
+
+    /**
+     * Splits the full child at idx. Writes all three nodes.
+     * @return the new right sibling
+     */
+    private Node<K, V> split(Node<K, V> parent, int idx, Node<K, V> target) {
+        Node<K, V> sibling = newNode(target.leaf);
+        sibling.appendFrom(target, minimumDegree);
+        K medianKey = target.getKey(minimumDegree - 1);
+        V medianValue = target.getValue(minimumDegree - 1);
+        target.removeEntry(minimumDegree - 1);
+        parent.insertEntry(idx, medianKey, medianValue);
+        parent.insertChild(idx + 1, sibling.id);
+        write(target);
+        write(sibling);
+        write(parent);
+        return sibling;
+    }
+
+    /**
+     * Removes the key from the subtree of the given node, which is written back if it changed.
+     */
+    private boolean delete(Node<K, V> node, K key) {
+        int i = node.findKey(key);
+        if (node.leaf) {
+            if (i < 0) return false;
+            node.removeEntry(i);
+            write(node);
+            return true;
+        }
+        Node<K, V> child;
+        if (i >= 0) {
+            // replace the key by its predecessor and remove the predecessor from the left subtree
+            child = read(node.children[i]);
+            moveLargestEntry(child, node, i);
+        } else {
+            i = -i - 1;
+            child = read(node.children[i]);
+            if (!delete(child, key)) return false;
+        }
+        fixChild(node, i, child);
+        write(node);
+        return true;
+    }
+
+    /**
+     * Removes the largest entry of the subtree of the given node and sets it at slot idx of target.
+     */
+    private void moveLargestEntry(Node<K, V> node, Node<K, V> target, int idx) {
+        int last = node.numberOfKeys - 1;
+        if (node.leaf) {
+            target.setEntry(idx, node.getKey(last), node.getValue(last));
+            node.removeEntry(last);
+            write(node);
+            return;
+        }
+        Node<K, V> child = read(node.children[last + 1]);
+        moveLargestEntry(child, target, idx);
+        fixChild(node, last + 1, child);
+        write(node);
+    }
+
+    /**
+     * Restores the minimum number of keys of the child at childIdx, borrowing from a sibling or merging.
+     */
+    private void fixChild(Node<K, V> parent, int childIdx, Node<K, V> child) {
+        if (child.numberOfKeys >= minKeys) return;
+        Node<K, V> left = null;
+        Node<K, V> right = null;
+        if (childIdx > 0) {
+            left = read(parent.children[childIdx - 1]);
+            if (left.numberOfKeys > minKeys) {
+                child.insertEntry(0, parent.getKey(childIdx - 1), parent.getValue(childIdx - 1));
+                int last = left.numberOfKeys - 1;
+                parent.setEntry(childIdx - 1, left.getKey(last), left.getValue(last));
+                left.removeEntry(last);
+                if (!left.leaf) {
+                    child.insertChild(0, left.children[last + 1]);
+                    left.removeChild(last + 1);
+                }
+                write(left);
+                write(child);
+                return;
+            }
+        }
+        if (childIdx < parent.numberOfKeys) {
+            right = read(parent.children[childIdx + 1]);
+            if (right.numberOfKeys > minKeys) {
+                child.insertEntry(child.numberOfKeys, parent.getKey(childIdx), parent.getValue(childIdx));
+                parent.setEntry(childIdx, right.getKey(0), right.getValue(0));
+                right.removeEntry(0);
+                if (!right.leaf) {
+                    child.insertChild(child.numberOfChildren, right.children[0]);
+                    right.removeChild(0);
+                }
+                write(right);
+                write(child);
+                return;
+            }
+        }
+        if (left != null)
+            merge(parent, childIdx - 1, left, child);
+        else
+            merge(parent, childIdx, child, right);
+    }
+
+    /**
+     * Pulls the separator at idx down into left, appends right to it and frees right.
+     */
+    private void merge(Node<K, V> parent, int idx, Node<K, V> left, Node<K, V> right) {
+        left.insertEntry(left.numberOfKeys, parent.getKey(idx), parent.getValue(idx));
+        left.appendFrom(right, 0);
+        parent.removeEntry(idx);
+        parent.removeChild(idx + 1);
+        write(left);
+        freeChain(right.id);
+    }
+
+    /*
+    ======================================================================================================================
+    Records
+     */
+
+    private Node<K, V> newNode(boolean leaf) {
+        return new Node<>(allocatePage(), leaf, maxKeys);
+    }
+
+    private int allocatePage() {
+        int pageId = store.allocate();
+        ByteBuffer page = store.pin(pageId);
+        page.putInt(0, NO_PAGE);
+        page.putInt(Integer.BYTES, 0);
+        store.unpin(pageId, true);
+        return pageId;
+    }
+
+    private Node<K, V> read(int pageId) {
+        record.clear();
+        int page = pageId;
+        while (page != NO_PAGE) {
+            ByteBuffer buffer = store.pin(page);
+            int next = buffer.getInt(0);
+            int length = buffer.getInt(Integer.BYTES);
+            ensureRecordCapacity(record.position() + length);
+            buffer.limit(PAGE_HEADER + length).position(PAGE_HEADER);
+            record.put(buffer);
+            store.unpin(page, false);
+            page = next;
+        }
+        record.flip();
+
+        Node<K, V> node = new Node<>(pageId, record.get() != 0, maxKeys);
+        int n = record.getInt();
+        if (!node.leaf) {
+            for (int i = 0; i <= n; i++)
+                node.children[i] = record.getInt();
+            node.numberOfChildren = n + 1;
+        }
+        for (int i = 0; i < n; i++)
+            node.keys[i] = keySerializer.read(record);
+        for (int i = 0; i < n; i++)
+            node.values[i] = valueSerializer.read(record);
+        node.numberOfKeys = n;
+        return node;
+    }
+
+    private void write(Node<K, V> node) {
+        int n = node.numberOfKeys;
+        int size = 1 + Integer.BYTES + (node.leaf ? 0 : (n + 1) * Integer.BYTES);
+        for (int i = 0; i < n; i++)
+            size += keySerializer.sizeOf(node.getKey(i)) + valueSerializer.sizeOf(node.getValue(i));
+        record.clear();
+        ensureRecordCapacity(size);
+        record.put((byte) (node.leaf ? 1 : 0));
+        record.putInt(n);
+        if (!node.leaf)
+            for (int i = 0; i <= n; i++)
+                record.putInt(node.children[i]);
+        for (int i = 0; i < n; i++)
+            keySerializer.write(node.getKey(i), record);
+        for (int i = 0; i < n; i++)
+            valueSerializer.write(node.getValue(i), record);
+        record.flip();
+
+        // reuse the pages already chained to the record, then allocate or free the difference
+        int payload = store.pageSize() - PAGE_HEADER;
+        int page = node.id;
+        while (true) {
+            ByteBuffer buffer = store.pin(page);
+            int next = buffer.getInt(0);
+            int length = Math.min(payload, record.remaining());
+            buffer.putInt(Integer.BYTES, length);
+            buffer.position(PAGE_HEADER);
+            int limit = record.limit();
+            record.limit(record.position() + length);
+            buffer.put(record);
+            record.limit(limit);
+            if (!record.hasRemaining()) {
+                buffer.putInt(0, NO_PAGE);
+                store.unpin(page, true);
+                freeChain(next);
+                return;
+            }
+            if (next == NO_PAGE) {
+                next = allocatePage();
+                buffer.putInt(0, next);
+            }
+            store.unpin(page, true);
+            page = next;
+        }
+    }
+
+    private void freeChain(int page) {
+        while (page != NO_PAGE) {
+            ByteBuffer buffer = store.pin(page);
+            int next = buffer.getInt(0);
+            store.unpin(page, false);
+            store.free(page);
+            page = next;
+        }
+    }
+
+    private void ensureRecordCapacity(int capacity) {
+        if (capacity <= record.capacity()) return;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, 2 * record.capacity()));
+        record.flip();
+        larger.put(record);
+        record = larger;
+    }
+
+    /**
+     * Heap copy of a node, only alive during one operation.
+     */
+    private static final class Node<K extends Comparable<K>, V> {
+        final int id;
+        final boolean leaf;
+        final Object[] keys;
+        final Object[] values;
+        final int[] children;
+        int numberOfKeys;
+        int numberOfChildren;
+
+        Node(int id, boolean leaf, int maxKeys) {
+            this.id = id;
+            this.leaf = leaf;
+            keys = new Object[maxKeys];
+            values = new Object[maxKeys];
+            children = leaf ? null : new int[maxKeys + 1];
+        }
+
+        @SuppressWarnings("unchecked")
+        K getKey(int idx) {
+            return (K) keys[idx];
+        }
+
+        @SuppressWarnings("unchecked")
+        V getValue(int idx) {
+            return (V) values[idx];
+        }
+
+        /**
+         * Same contract as BTreeNode.findKey: the slot of the key, or -(child index + 1) when it is not here.
+         */
+        int findKey(K key) {
+            int low = 0;
+            int high = numberOfKeys - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = getKey(mid).compareTo(key);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -(low + 1);
+        }
+
+        void setEntry(int idx, K key, V value) {
+            keys[idx] = key;
+            values[idx] = value;
+        }
+
+        void insertEntry(int idx, K key, V value) {
+            System.arraycopy(keys, idx, keys, idx + 1, numberOfKeys - idx);
+            System.arraycopy(values, idx, values, idx + 1, numberOfKeys - idx);
+            setEntry(idx, key, value);
+            numberOfKeys++;
+        }
+
+        void removeEntry(int idx) {
+            numberOfKeys--;
+            System.arraycopy(keys, idx + 1, keys, idx, numberOfKeys - idx);
+            System.arraycopy(values, idx + 1, values, idx, numberOfKeys - idx);
+            setEntry(numberOfKeys, null, null);
+        }
+
+        void insertChild(int idx, int child) {
+            System.arraycopy(children, idx, children, idx + 1, numberOfChildren - idx);
+            children[idx] = child;
+            numberOfChildren++;
+        }
+
+        void removeChild(int idx) {
+            numberOfChildren--;
+            System.arraycopy(children, idx + 1, children, idx, numberOfChildren - idx);
+        }
+
+        /**
+         * Moves the entries of src starting at from, and its children starting at the same index, to the end of
+         * this node.
+         */
+        void appendFrom(Node<K, V> src, int from) {
+            int length = src.numberOfKeys - from;
+            System.arraycopy(src.keys, from, keys, numberOfKeys, length);
+            System.arraycopy(src.values, from, values, numberOfKeys, length);
+            numberOfKeys += length;
+            for (int i = from; i < src.numberOfKeys; i++)
+                src.setEntry(i, null, null);
+            src.numberOfKeys = from;
+            if (!src.leaf) {
+                int childLength = src.numberOfChildren - from;
+                System.arraycopy(src.children, from, children, numberOfChildren, childLength);
+                numberOfChildren += childLength;
+                src.numberOfChildren = from;
+            }
+        }
+    }
+
+    /**
+     * Read-only IBTreeNode over a decoded node, decoding the children when they are asked for.
+     */
+    private final class NodeView implements IBTreeNode<K, V> {
+        private final Node<K, V> node;
+
+        NodeView(Node<K, V> node) {
+            this.node = node;
+        }
+
+        @Override
+        public int getNumOfKeys() {
+            return node.numberOfKeys;
+        }
+
+        @Override
+        public void setNumOfKeys(int numOfKeys) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return node.leaf;
+        }
+
+        @Override
+        public void setLeaf(boolean isLeaf) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public List<K> getKeys() {
+            return new AbstractList<K>() {
+                @Override
+                public K get(int index) {
+                    checkIndex(index, node.numberOfKeys);
+                    return node.getKey(index);
+                }
+
+                @Override
+                public int size() {
+                    return node.numberOfKeys;
+                }
+            };
+        }
+
+        @Override
+        public void setKeys(List<K> keys) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public List<V> getValues() {
+            return new AbstractList<V>() {
+                @Override
+                public V get(int index) {
+                    checkIndex(index, node.numberOfKeys);
+                    return node.getValue(index);
+                }
+
+                @Override
+                public int size() {
+                    return node.numberOfKeys;
+                }
+            };
+        }
+
+        @Override
+        public void setValues(List<V> values) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        @Override
+        public List<IBTreeNode<K, V>> getChildren() {
+            if (node.leaf) return null;
+            return new AbstractList<IBTreeNode<K, V>>() {
+                @Override
+                public IBTreeNode<K, V> get(int index) {
+                    checkIndex(index, node.numberOfChildren);
+                    return new NodeView(read(node.children[index]));
+                }
+
+                @Override
+                public int size() {
+                    return node.numberOfChildren;
+                }
+            };
+        }
+
+        @Override
+        public void setChildren(List<IBTreeNode<K, V>> children) {
+            LocalException.throwRunTimeErrorException();
+        }
+
+        private void checkIndex(int index, int size) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
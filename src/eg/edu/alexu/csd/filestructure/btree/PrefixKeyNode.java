@@ -0,0 +1,283 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Node of a String keyed tree storing the longest prefix shared by its keys once, and the rest of each key as bytes
+ * packed back to back in a single array, instead of one String object per key.
+ *
+ * Keys are encoded one UTF-16 char at a time as 1 to 3 bytes, the way UTF-8 encodes code points up to U+FFFF,
+ * so that comparing encodings byte by byte orders them like String.compareTo, surrogates included.
+ * The prefix always ends on a char boundary. A search compares the key against the prefix once, which settles it
+ * when the key falls outside the node, and then binary searches the suffixes, decoding them as it goes without
+ * allocating. getKey decodes a new String on every call.
+ */
+class PrefixKeyNode<V> extends BTreeNode<String, V> {
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] prefix = EMPTY;
+    private byte[] suffixes = EMPTY;
+    /* ends[i] is the end of the suffix of key i in suffixes, which starts at the end of key i - 1 */
+    private int[] ends;
+
+    PrefixKeyNode(int minimumDegree, boolean leaf) {
+        super(minimumDegree, leaf, true, false);
+        ends = new int[2 * minimumDegree - 1];
+    }
+
+    private PrefixKeyNode(PrefixKeyNode<V> src) {
+        super(src);
+        // the prefix is never modified in place, only replaced
+        prefix = src.prefix;
+        suffixes = src.suffixes.clone();
+        ends = src.ends.clone();
+    }
+
+    @Override
+    String getKey(int idx) {
+        int start = start(idx);
+        char[] chars = new char[prefix.length + ends[idx] - start];
+        int length = decode(prefix, 0, prefix.length, chars, 0);
+        length = decode(suffixes, start, ends[idx], chars, length);
+        return new String(chars, 0, length);
+    }
+
+    @Override
+    int findKey(String key) {
+        int n = getNumOfKeys();
+        int k = 0;
+        for (int pos = 0; pos < prefix.length; ) {
+            // a key that stops inside the prefix or differs from it is below or above the whole node
+            if (k == key.length()) return -1;
+            char c = decodeChar(prefix, pos);
+            pos += charLength(prefix[pos]);
+            char kc = key.charAt(k++);
+            if (kc != c) return kc < c ? -1 : -(n + 1);
+        }
+        int low = 0;
+        int high = n - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(key, k, suffixes, start(mid), ends[mid]);
+            if (cmp > 0) low = mid + 1;
+            else if (cmp < 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public void setKeys(List<String> keys) {
+        ensureCapacity(keys.size());
+        for (int i = 0; i < keys.size(); i++)
+            insert(i, encode(keys.get(i)), i);
+        extendPrefix(keys.size());
+        setNumOfKeys(keys.size());
+    }
+
+    @Override
+    void setKey(int idx, String key) {
+        int n = getNumOfKeys();
+        remove(idx, n);
+        insert(idx, encode(key), n - 1);
+        extendPrefix(n);
+    }
+
+    @Override
+    void insertKey(int idx, String key) {
+        insert(idx, encode(key), getNumOfKeys());
+    }
+
+    @Override
+    void removeKey(int idx) {
+        int n = getNumOfKeys();
+        remove(idx, n);
+        extendPrefix(n - 1);
+    }
+
+    @Override
+    void appendKeys(BTreeNode<String, V> src, int from, int len) {
+        PrefixKeyNode<V> source = (PrefixKeyNode<V>) src;
+        int n = getNumOfKeys();
+        for (int i = 0; i < len; i++) {
+            int start = source.start(from + i);
+            int suffixLength = source.ends[from + i] - start;
+            byte[] encoded = Arrays.copyOf(source.prefix, source.prefix.length + suffixLength);
+            System.arraycopy(source.suffixes, start, encoded, source.prefix.length, suffixLength);
+            insert(n + i, encoded, n + i);
+        }
+        extendPrefix(n + len);
+    }
+
+    @Override
+    void truncateKeys(int from) {
+        extendPrefix(from);
+    }
+
+    @Override
+    void growKeys(int capacity) {
+        ends = Arrays.copyOf(ends, capacity);
+    }
+
+    @Override
+    BTreeNode<String, V> copy() {
+        return new PrefixKeyNode<>(this);
+    }
+
+    private int start(int idx) {
+        return idx == 0 ? 0 : ends[idx - 1];
+    }
+
+    /**
+     * Inserts the encoded key at idx among the n keys, shortening the prefix first if the key does not start with it.
+     */
+    private void insert(int idx, byte[] encoded, int n) {
+        if (n == 0) {
+            prefix = encoded;
+        } else {
+            int common = commonPrefix(prefix, 0, prefix.length, encoded, 0, encoded.length);
+            if (common < prefix.length) shrinkPrefix(common, n);
+        }
+        int length = encoded.length - prefix.length;
+        int used = n == 0 ? 0 : ends[n - 1];
+        if (used + length > suffixes.length)
+            suffixes = Arrays.copyOf(suffixes, Math.max(used + length, Math.max(16, 2 * suffixes.length)));
+        int start = start(idx);
+        System.arraycopy(suffixes, start, suffixes, start + length, used - start);
+        System.arraycopy(encoded, prefix.length, suffixes, start, length);
+        for (int j = n; j > idx; j--)
+            ends[j] = ends[j - 1] + length;
+        ends[idx] = start + length;
+    }
+
+    /**
+     * Removes the suffix at idx among the n keys, leaving the prefix as it is.
+     */
+    private void remove(int idx, int n) {
+        int start = start(idx);
+        int end = ends[idx];
+        System.arraycopy(suffixes, end, suffixes, start, ends[n - 1] - end);
+        for (int j = idx; j < n - 1; j++)
+            ends[j] = ends[j + 1] - (end - start);
+    }
+
+    /**
+     * Moves the end of the prefix, from newLength on, to the front of each of the n suffixes.
+     */
+    private void shrinkPrefix(int newLength, int n) {
+        int dropped = prefix.length - newLength;
+        byte[] moved = new byte[Math.max(suffixes.length, ends[n - 1] + n * dropped)];
+        int write = 0;
+        int previousEnd = 0;
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(prefix, newLength, moved, write, dropped);
+            write += dropped;
+            System.arraycopy(suffixes, previousEnd, moved, write, ends[i] - previousEnd);
+            write += ends[i] - previousEnd;
+            previousEnd = ends[i];
+            ends[i] = write;
+        }
+        suffixes = moved;
+        prefix = Arrays.copyOf(prefix, newLength);
+    }
+
+    /**
+     * Moves the longest prefix the n suffixes share to the end of the prefix, keeping it the longest common one
+     * after keys are removed or replaced.
+     */
+    private void extendPrefix(int n) {
+        if (n == 0) return;
+        int common = ends[0];
+        for (int i = 1; i < n && common > 0; i++)
+            common = commonPrefix(suffixes, 0, common, suffixes, ends[i - 1], ends[i] - ends[i - 1]);
+        if (common == 0) return;
+        byte[] extended = Arrays.copyOf(prefix, prefix.length + common);
+        System.arraycopy(suffixes, 0, extended, prefix.length, common);
+        int write = 0;
+        int previousEnd = 0;
+        for (int i = 0; i < n; i++) {
+            int length = ends[i] - previousEnd - common;
+            System.arraycopy(suffixes, previousEnd + common, suffixes, write, length);
+            previousEnd = ends[i];
+            write += length;
+            ends[i] = write;
+        }
+        prefix = extended;
+    }
+
+    /**
+     * @return the length of the longest common prefix of the two ranges that ends on a char boundary in both
+     */
+    private static int commonPrefix(byte[] a, int aFrom, int aLength, byte[] b, int bFrom, int bLength) {
+        int max = Math.min(aLength, bLength);
+        int i = 0;
+        while (i < max && a[aFrom + i] == b[bFrom + i])
+            i++;
+        while (i > 0 && ((i < aLength && isContinuation(a[aFrom + i])) || (i < bLength && isContinuation(b[bFrom + i]))))
+            i--;
+        return i;
+    }
+
+    /**
+     * Compares key from char k on with the encoded range, like String.compareTo.
+     */
+    private static int compare(String key, int k, byte[] bytes, int from, int to) {
+        while (from < to) {
+            if (k == key.length()) return -1;
+            char c = decodeChar(bytes, from);
+            from += charLength(bytes[from]);
+            char kc = key.charAt(k++);
+            if (kc != c) return kc < c ? -1 : 1;
+        }
+        return k == key.length() ? 0 : 1;
+    }
+
+    private static byte[] encode(String key) {
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            length += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    private static int decode(byte[] bytes, int from, int to, char[] chars, int offset) {
+        while (from < to) {
+            chars[offset++] = decodeChar(bytes, from);
+            from += charLength(bytes[from]);
+        }
+        return offset;
+    }
+
+    private static char decodeChar(byte[] bytes, int pos) {
+        int lead = bytes[pos] & 0xFF;
+        if (lead < 0x80) return (char) lead;
+        if (lead < 0xE0) return (char) (((lead & 0x1F) << 6) | (bytes[pos + 1] & 0x3F));
+        return (char) (((lead & 0x0F) << 12) | ((bytes[pos + 1] & 0x3F) << 6) | (bytes[pos + 2] & 0x3F));
+    }
+
+    private static int charLength(byte lead) {
+        int b = lead & 0xFF;
+        return b < 0x80 ? 1 : b < 0xE0 ? 2 : 3;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+}
@@ -0,0 +1,246 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.Arrays;
+
+/**
+ * Structure shared by the B-Trees with primitive keys ({@link LongBTree}, {@link IntBTree}, {@link LongLongBTree},
+ * {@link IntIntBTree}).
+ *
+ * Their nodes keep keys and values in parallel primitive (or Object) arrays, so a search compares primitives
+ * without boxing. The subclasses own everything that touches a key: the search, and the descents of insertion and
+ * deletion. Restructuring never compares keys, so it is written once here in terms of slots, an entry being
+ * moved between nodes with {@link Node#copySlots} like System.arraycopy moves array elements.
+ * Same algorithms as {@link BTree}: single pass insertion splitting full nodes on the way down, and single pass
+ * deletion making sure every node it descends into has more than t-1 keys.
+ */
+abstract class PrimitiveBTree {
+    final int minimumDegree;
+    final int maxKeys;
+    final int minKeys;
+    Node root;
+    int size;
+
+    PrimitiveBTree(int minimumDegree) {
+        if (minimumDegree < 2) LocalException.throwRunTimeErrorException();
+        this.minimumDegree = minimumDegree;
+        maxKeys = 2 * minimumDegree - 1;
+        minKeys = minimumDegree - 1;
+    }
+
+    public int getMinimumDegree() {
+        return minimumDegree;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    abstract Node newNode(boolean leaf);
+
+    abstract static class Node {
+        int numberOfKeys;
+        final boolean leaf;
+        /* numberOfKeys + 1 of them in internal nodes, null in leaves */
+        final Node[] children;
+
+        Node(int minimumDegree, boolean leaf) {
+            this.leaf = leaf;
+            children = leaf ? null : new Node[2 * minimumDegree];
+        }
+
+        /**
+         * Copies the entries [srcPos, srcPos + length) of src to [destPos, destPos + length) of this node,
+         * src being a node of the same class, possibly this one.
+         */
+        abstract void copySlots(Node src, int srcPos, int destPos, int length);
+
+        /**
+         * Drops the references held by the entries [from, to), for the nodes with Object values.
+         */
+        void clearSlots(int from, int to) {
+        }
+    }
+
+    /**
+     * @return the root, created or split first so that it can take one more key
+     */
+    Node rootForInsertion() {
+        if (root == null) {
+            root = newNode(true);
+        } else if (root.numberOfKeys == maxKeys) {
+            Node newRoot = newNode(false);
+            newRoot.children[0] = root;
+            root = newRoot;
+            split(newRoot, 0);
+        }
+        return root;
+    }
+
+    /**
+     * Shifts the entries from idx on one slot to the right. The caller writes the new entry at idx.
+     */
+    static void openSlot(Node node, int idx) {
+        node.copySlots(node, idx, idx + 1, node.numberOfKeys - idx);
+        node.numberOfKeys++;
+    }
+
+    static void removeSlot(Node node, int idx) {
+        node.copySlots(node, idx + 1, idx, node.numberOfKeys - idx - 1);
+        node.numberOfKeys--;
+        node.clearSlots(node.numberOfKeys, node.numberOfKeys + 1);
+    }
+
+    /**
+     * Splits the full child idx of parent around its median, which moves up to parent.
+     */
+    void split(Node parent, int idx) {
+        Node target = parent.children[idx];
+        Node sibling = newNode(target.leaf);
+        sibling.copySlots(target, minimumDegree, 0, minKeys);
+        sibling.numberOfKeys = minKeys;
+        if (!target.leaf) {
+            System.arraycopy(target.children, minimumDegree, sibling.children, 0, minimumDegree);
+            Arrays.fill(target.children, minimumDegree, 2 * minimumDegree, null);
+        }
+        openSlot(parent, idx);
+        parent.copySlots(target, minKeys, idx, 1);
+        System.arraycopy(parent.children, idx + 1, parent.children, idx + 2, parent.numberOfKeys - idx - 1);
+        parent.children[idx + 1] = sibling;
+        target.numberOfKeys = minKeys;
+        target.clearSlots(minKeys, maxKeys);
+    }
+
+    /**
+     * Gives the child idx of parent, which has t-1 keys, one more key by borrowing from a sibling or merging with it.
+     * @return the index of the child that now covers the keys of the former child idx
+     */
+    int fixChild(Node parent, int idx) {
+        if (idx > 0 && parent.children[idx - 1].numberOfKeys > minKeys) {
+            borrowFromLeft(parent, idx);
+            return idx;
+        }
+        if (idx < parent.numberOfKeys && parent.children[idx + 1].numberOfKeys > minKeys) {
+            borrowFromRight(parent, idx);
+            return idx;
+        }
+        if (idx > 0) {
+            merge(parent, idx - 1);
+            return idx - 1;
+        }
+        merge(parent, idx);
+        return idx;
+    }
+
+    /**
+     * Merges the children idx and idx + 1 of parent around the entry idx, collapsing the root if it empties.
+     */
+    void merge(Node parent, int idx) {
+        Node left = parent.children[idx];
+        Node right = parent.children[idx + 1];
+        left.copySlots(parent, idx, left.numberOfKeys, 1);
+        left.copySlots(right, 0, left.numberOfKeys + 1, right.numberOfKeys);
+        if (!left.leaf)
+            System.arraycopy(right.children, 0, left.children, left.numberOfKeys + 1, right.numberOfKeys + 1);
+        left.numberOfKeys += 1 + right.numberOfKeys;
+        removeSlot(parent, idx);
+        System.arraycopy(parent.children, idx + 2, parent.children, idx + 1, parent.numberOfKeys - idx);
+        parent.children[parent.numberOfKeys + 1] = null;
+        if (parent == root && parent.numberOfKeys == 0)
+            root = left;
+    }
+
+    private void borrowFromLeft(Node parent, int idx) {
+        Node child = parent.children[idx];
+        Node left = parent.children[idx - 1];
+        openSlot(child, 0);
+        child.copySlots(parent, idx - 1, 0, 1);
+        parent.copySlots(left, left.numberOfKeys - 1, idx - 1, 1);
+        if (!child.leaf) {
+            System.arraycopy(child.children, 0, child.children, 1, child.numberOfKeys);
+            child.children[0] = left.children[left.numberOfKeys];
+            left.children[left.numberOfKeys] = null;
+        }
+        left.numberOfKeys--;
+        left.clearSlots(left.numberOfKeys, left.numberOfKeys + 1);
+    }
+
+    private void borrowFromRight(Node parent, int idx) {
+        Node child = parent.children[idx];
+        Node right = parent.children[idx + 1];
+        child.copySlots(parent, idx, child.numberOfKeys, 1);
+        child.numberOfKeys++;
+        parent.copySlots(right, 0, idx, 1);
+        if (!child.leaf) {
+            child.children[child.numberOfKeys] = right.children[0];
+            System.arraycopy(right.children, 1, right.children, 0, right.numberOfKeys);
+            right.children[right.numberOfKeys] = null;
+        }
+        removeSlot(right, 0);
+    }
+
+    /**
+     * Replaces the entry idx of the internal node with its predecessor, removed from the child idx,
+     * which must have more than t-1 keys.
+     */
+    void replaceWithPredecessor(Node node, int idx) {
+        Node current = node.children[idx];
+        while (!current.leaf) {
+            int last = current.numberOfKeys;
+            if (current.children[last].numberOfKeys == minKeys)
+                last = fixChild(current, last);
+            current = current.children[last];
+        }
+        node.copySlots(current, current.numberOfKeys - 1, idx, 1);
+        removeSlot(current, current.numberOfKeys - 1);
+    }
+
+    /**
+     * Replaces the entry idx of the internal node with its successor, removed from the child idx + 1,
+     * which must have more than t-1 keys.
+     */
+    void replaceWithSuccessor(Node node, int idx) {
+        Node current = node.children[idx + 1];
+        while (!current.leaf) {
+            int first = 0;
+            if (current.children[first].numberOfKeys == minKeys)
+                first = fixChild(current, first);
+            current = current.children[first];
+        }
+        node.copySlots(current, 0, idx, 1);
+        removeSlot(current, 0);
+    }
+
+    /**
+     * Removes the entry idx of node, reached by a deletion descent that made sure node has more than t-1 keys
+     * (unless it is the root).
+     * @return the child to continue the descent into with the same key, or null once the entry is removed
+     */
+    Node removeEntry(Node node, int idx) {
+        if (node.leaf) {
+            removeSlot(node, idx);
+        } else if (node.children[idx].numberOfKeys > minKeys) {
+            replaceWithPredecessor(node, idx);
+        } else if (node.children[idx + 1].numberOfKeys > minKeys) {
+            replaceWithSuccessor(node, idx);
+        } else {
+            merge(node, idx);
+            return node.children[idx];
+        }
+        size--;
+        if (root.numberOfKeys == 0 && root.leaf)
+            root = null;
+        return null;
+    }
+
+    /**
+     * @return the child at idx of node, after making sure it has more than t-1 keys
+     */
+    Node childForDeletion(Node node, int idx) {
+        if (node.children[idx].numberOfKeys == minKeys)
+            idx = fixChild(node, idx);
+        return node.children[idx];
+    }
+}
@@ -8,6 +8,8 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -20,7 +22,7 @@ public class SearchEngine implements ISearchEngine {
     BTree<String, Map<String, Integer>> btree;
 
     public SearchEngine(int t) {
-        btree = new BTree<>(t);
+        btree = BTree.withPrefixCompressedKeys(t);
     }
 
     @Override
@@ -56,14 +58,7 @@ public class SearchEngine implements ISearchEngine {
             for (Map.Entry<String, Integer> it : wordsFreq.entrySet()) {
                 String word = it.getKey();
                 Integer rank = it.getValue();
-                Map<String, Integer> mp = btree.search(word);
-                if (mp == null) {
-                    mp = new HashMap<>();
-                    mp.put(id, rank);
-                    btree.insert(word, mp);
-                } else {
-                    mp.put(id, rank);
-                }
+                btree.computeIfAbsent(word, w -> new HashMap<>()).put(id, rank);
             }
         }
 
@@ -137,8 +132,7 @@ public class SearchEngine implements ISearchEngine {
         sentence = sentence.toLowerCase();
         String[] words = reformInput(sentence).split(" ");
         Map<String, Integer> res = new HashMap<>();
-        for (String word : words) {
-            Map<String, Integer> cachedResult = btree.search(word);
+        for (Map<String, Integer> cachedResult : btree.searchAll(Arrays.asList(words))) {
             if (cachedResult == null) {
             } else {
                 for (Map.Entry<String, Integer> it : cachedResult.entrySet()) {
@@ -158,6 +152,24 @@ public class SearchEngine implements ISearchEngine {
         return list;
     }
 
+    /**
+     * Writes the index to the stream, words and postings with varint lengths and frequencies,
+     * so that {@link #load} restores it without parsing any web page again. The stream is flushed but not closed.
+     */
+    public void save(OutputStream out) {
+        btree.save(out, Serializers.VARINT_STRING, Serializers.VARINT_POSTINGS);
+    }
+
+    /**
+     * Replaces the index with the one written by {@link #save} from an engine of the same minimum degree.
+     * The index is left as it was if the stream is not a valid index. The stream should be buffered and is not closed.
+     */
+    public void load(InputStream in) {
+        BTree<String, Map<String, Integer>> loaded = BTree.withPrefixCompressedKeys(btree.getMinimumDegree());
+        loaded.load(in, Serializers.VARINT_STRING, Serializers.VARINT_POSTINGS);
+        btree = loaded;
+    }
+
     private String reformInput(String input) {
         input = input.toLowerCase().trim();
         input = input.replaceAll("\n", " ");
@@ -0,0 +1,25 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes keys or values to bytes for the trees that keep their nodes outside the Java heap.
+ * See {@link Serializers} for the common types.
+ */
+public interface Serializer<T> {
+
+    /**
+     * @return the number of bytes {@link #write} will put for the value
+     */
+    int sizeOf(T value);
+
+    /**
+     * Writes the value at the position of the buffer, which has at least sizeOf(value) bytes remaining.
+     */
+    void write(T value, ByteBuffer buffer);
+
+    /**
+     * Reads a value written by {@link #write} at the position of the buffer.
+     */
+    T read(ByteBuffer buffer);
+}
@@ -0,0 +1,238 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializers for the key and value types used across the package.
+ */
+public final class Serializers {
+
+    private Serializers() {
+    }
+
+    public static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+        @Override
+        public int sizeOf(Integer value) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(Integer value, ByteBuffer buffer) {
+            buffer.putInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    public static final Serializer<Long> LONG = new Serializer<Long>() {
+        @Override
+        public int sizeOf(Long value) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(Long value, ByteBuffer buffer) {
+            buffer.putLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    };
+
+    /**
+     * Length-prefixed UTF-8.
+     */
+    public static final Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public int sizeOf(String value) {
+            return Integer.BYTES + utf8Length(value);
+        }
+
+        @Override
+        public void write(String value, ByteBuffer buffer) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        @Override
+        public String read(ByteBuffer buffer) {
+            int length = checkLength(buffer.getInt(), 1, buffer);
+            String value;
+            if (buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+    };
+
+    /**
+     * The postings of a SearchEngine word: document id to frequency.
+     */
+    public static final Serializer<Map<String, Integer>> POSTINGS = new Serializer<Map<String, Integer>>() {
+        @Override
+        public int sizeOf(Map<String, Integer> value) {
+            int size = Integer.BYTES;
+            for (String id : value.keySet())
+                size += STRING.sizeOf(id) + Integer.BYTES;
+            return size;
+        }
+
+        @Override
+        public void write(Map<String, Integer> value, ByteBuffer buffer) {
+            buffer.putInt(value.size());
+            for (Map.Entry<String, Integer> posting : value.entrySet()) {
+                STRING.write(posting.getKey(), buffer);
+                buffer.putInt(posting.getValue());
+            }
+        }
+
+        @Override
+        public Map<String, Integer> read(ByteBuffer buffer) {
+            int size = checkLength(buffer.getInt(), STRING.sizeOf("") + Integer.BYTES, buffer);
+            Map<String, Integer> value = new HashMap<>();
+            for (int i = 0; i < size; i++)
+                value.put(STRING.read(buffer), buffer.getInt());
+            return value;
+        }
+    };
+
+    /**
+     * UTF-8 prefixed by its length as a varint, for the streams where every byte counts.
+     */
+    public static final Serializer<String> VARINT_STRING = new Serializer<String>() {
+        @Override
+        public int sizeOf(String value) {
+            int length = utf8Length(value);
+            return varintSize(length) + length;
+        }
+
+        @Override
+        public void write(String value, ByteBuffer buffer) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length, buffer);
+            buffer.put(bytes);
+        }
+
+        @Override
+        public String read(ByteBuffer buffer) {
+            int length = checkLength(readVarint(buffer), 1, buffer);
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * {@link #POSTINGS} with varints for the count and the frequencies and {@link #VARINT_STRING} ids,
+     * which usually takes a third of the space. Read into a mutable HashMap.
+     */
+    public static final Serializer<Map<String, Integer>> VARINT_POSTINGS = new Serializer<Map<String, Integer>>() {
+        @Override
+        public int sizeOf(Map<String, Integer> value) {
+            int size = varintSize(value.size());
+            for (Map.Entry<String, Integer> posting : value.entrySet())
+                size += VARINT_STRING.sizeOf(posting.getKey()) + varintSize(posting.getValue());
+            return size;
+        }
+
+        @Override
+        public void write(Map<String, Integer> value, ByteBuffer buffer) {
+            writeVarint(value.size(), buffer);
+            for (Map.Entry<String, Integer> posting : value.entrySet()) {
+                VARINT_STRING.write(posting.getKey(), buffer);
+                writeVarint(posting.getValue(), buffer);
+            }
+        }
+
+        @Override
+        public Map<String, Integer> read(ByteBuffer buffer) {
+            int size = checkLength(readVarint(buffer), VARINT_STRING.sizeOf("") + 1, buffer);
+            Map<String, Integer> value = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+            for (int i = 0; i < size; i++)
+                value.put(VARINT_STRING.read(buffer), readVarint(buffer));
+            return value;
+        }
+    };
+
+    /**
+     * Rejects a length read from the buffer that the bytes remaining cannot hold, before anything is allocated for it,
+     * so that corrupt data fails instead of asking for gigabytes.
+     * @param bytesPerElement the fewest bytes each of the length's elements takes
+     * @return the length
+     */
+    private static int checkLength(int length, int bytesPerElement, ByteBuffer buffer) {
+        if (length < 0 || length > buffer.remaining() / bytesPerElement) LocalException.throwRunTimeErrorException();
+        return length;
+    }
+
+    /**
+     * Number of bytes {@link #writeVarint} takes for the value.
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the value 7 bits at a time, lowest first, the high bit of each byte telling whether another follows.
+     * Negative values take 5 bytes.
+     */
+    static void writeVarint(int value, ByteBuffer buffer) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        LocalException.throwRunTimeErrorException();
+        return 0;
+    }
+
+    /**
+     * Number of bytes of the UTF-8 encoding of s, without encoding it.
+     */
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // lone surrogates are encoded as '?' by String.getBytes
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+}
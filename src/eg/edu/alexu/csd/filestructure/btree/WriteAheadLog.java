@@ -0,0 +1,284 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of opaque records with group commit.
+ *
+ * A record is [int length][int CRC32 of the payload][payload]. Appending only queues the record; a flusher thread
+ * writes everything queued with one write and one fsync (a group commit) as soon as maxBatch records are queued or
+ * the oldest of them has waited syncIntervalMillis, so concurrent writers share fsyncs and a crash loses at most
+ * the records of the last interval. Writers that must not lose their record wait for it with {@link #awaitDurable}.
+ * On opening, the records already in the file are handed to a recovery callback up to the first one that is
+ * incomplete or fails its checksum, and the file is truncated there, dropping the tail a crash may have torn.
+ * Thread-safe.
+ */
+class WriteAheadLog implements AutoCloseable {
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+
+    private final FileChannel channel;
+    private final int maxBatch;
+    private final long syncIntervalNanos;
+    private final Thread flusher;
+
+    private List<byte[]> pending = new ArrayList<>();
+    private long oldestPendingNanos;
+    /* records are numbered from 1 in append order */
+    private long appended;
+    private long durable;
+    /* set when close starts: nothing more is appended, while what is queued still gets committed */
+    private boolean closing;
+    private boolean closed;
+    private boolean syncRequested;
+    private IOException failure;
+
+    /**
+     * Opens or creates the log, replaying its records into recovery before anything can be appended.
+     * @param maxBatch           the number of queued records that triggers a group commit right away
+     * @param syncIntervalMillis the longest a record stays queued, 0 to commit as soon as the flusher is free
+     * @param recovery           gets the payload of each valid record, in order
+     */
+    WriteAheadLog(Path file, int maxBatch, long syncIntervalMillis, Consumer<ByteBuffer> recovery) {
+        InputChecker.checkNullValue(file, recovery);
+        if (maxBatch < 1 || syncIntervalMillis < 0) LocalException.throwRunTimeErrorException();
+        this.maxBatch = maxBatch;
+        syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        FileChannel opened = null;
+        try {
+            opened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long end = replay(opened, recovery);
+            opened.truncate(end);
+            opened.position(end);
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (opened != null) opened.close();
+            } catch (IOException ignored) {
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            LocalException.throwRunTimeErrorException(e);
+        }
+        channel = opened;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues the record.
+     * @return its sequence number, to pass to {@link #awaitDurable}
+     */
+    synchronized long append(byte[] payload) {
+        checkUsable();
+        if (closing) LocalException.throwRunTimeErrorException();
+        if (pending.isEmpty()) oldestPendingNanos = System.nanoTime();
+        pending.add(payload);
+        appended++;
+        // the flusher sleeps without a deadline while nothing is queued
+        if (pending.size() == 1 || pending.size() >= maxBatch) notifyAll();
+        return appended;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and every record before it, is on disk.
+     */
+    synchronized void awaitDurable(long sequence) {
+        boolean interrupted = false;
+        while (durable < sequence) {
+            checkUsable();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Commits everything queued so far without waiting for the interval, and waits for it.
+     */
+    void sync() {
+        long sequence;
+        synchronized (this) {
+            sequence = appended;
+            syncRequested = true;
+            notifyAll();
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Drops every record once they are all durable, typically after a checkpoint made them redundant.
+     * The caller must make sure nothing is appended meanwhile.
+     */
+    synchronized void truncate() {
+        sync();
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+    }
+
+    /**
+     * Commits what is queued, stops the flusher and closes the file. Appends fail from the start of the call,
+     * so every append that returned is committed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closing || closed) return;
+            closing = true;
+            // sync waits with the monitor released, and the appends that get in meanwhile must fail
+            if (failure == null) sync();
+            closed = true;
+            notifyAll();
+        }
+        joinFlusher();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LocalException.throwRunTimeErrorException(e);
+        }
+    }
+
+    /**
+     * Simulates a crash for tests: stops at once, dropping whatever is still queued.
+     */
+    void crash() {
+        synchronized (this) {
+            pending = new ArrayList<>();
+            closed = true;
+            notifyAll();
+        }
+        joinFlusher();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<byte[]> batch;
+            long batchEnd;
+            synchronized (this) {
+                try {
+                    while (!closed && !readyToCommit()) {
+                        if (pending.isEmpty()) {
+                            wait();
+                        } else {
+                            long remaining = oldestPendingNanos + syncIntervalNanos - System.nanoTime();
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) return;
+                batch = pending;
+                pending = new ArrayList<>();
+                batchEnd = appended;
+                syncRequested = false;
+            }
+            IOException error = null;
+            try {
+                write(batch);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                if (error != null)
+                    failure = error;
+                else
+                    durable = batchEnd;
+                notifyAll();
+                if (error != null) return;
+            }
+        }
+    }
+
+    private boolean readyToCommit() {
+        if (pending.isEmpty()) return false;
+        return syncRequested || pending.size() >= maxBatch || System.nanoTime() - oldestPendingNanos >= syncIntervalNanos;
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        int size = 0;
+        for (byte[] payload : batch)
+            size += RECORD_HEADER + payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (byte[] payload : batch) {
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+    }
+
+    /**
+     * @return the end of the last valid record
+     */
+    private static long replay(FileChannel channel, Consumer<ByteBuffer> recovery) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        while (size - position >= RECORD_HEADER) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || length > size - position - RECORD_HEADER) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + RECORD_HEADER);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+            payload.flip();
+            recovery.accept(payload);
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of the log");
+        }
+    }
+
+    private void checkUsable() {
+        if (failure != null) LocalException.throwRunTimeErrorException(failure);
+        if (closed) LocalException.throwRunTimeErrorException();
+    }
+
+    private void joinFlusher() {
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,102 @@
+package eg.edu.alexu.csd.filestructure.btree;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput of ConcurrentBTree, crabbing and optimistic, against a BTree behind one global lock, for 1 to N threads.
+ * Not a unit test, run it by hand:
+ * java ConcurrentBTreeBenchmark [maxThreads] [secondsPerRun] [readPercent]
+ */
+public class ConcurrentBTreeBenchmark {
+    private static final int KEY_SPACE = 1 << 20;
+    private static final int MINIMUM_DEGREE = 16;
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int readPercent = args.length > 2 ? Integer.parseInt(args[2]) : 90;
+
+        System.out.println("threads\tglobal lock ops/s\tlatch crabbing ops/s\toptimistic ops/s");
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            BTree<Integer, Integer> plain = new BTree<>(MINIMUM_DEGREE);
+            IBTree<Integer, Integer> concurrent = BTree.newConcurrentTree(MINIMUM_DEGREE, false);
+            IBTree<Integer, Integer> optimistic = BTree.newConcurrentTree(MINIMUM_DEGREE, true);
+            preload(plain);
+            preload(concurrent);
+            preload(optimistic);
+            IBTree<Integer, Integer> locked = synchronizedView(plain);
+            long lockedOps = run(locked, threads, seconds, readPercent);
+            long concurrentOps = run(concurrent, threads, seconds, readPercent);
+            long optimisticOps = run(optimistic, threads, seconds, readPercent);
+            System.out.println(threads + "\t" + lockedOps / seconds + "\t" + concurrentOps / seconds
+                    + "\t" + optimisticOps / seconds);
+        }
+    }
+
+    private static void preload(IBTree<Integer, Integer> tree) {
+        Random r = new Random(42);
+        for (int i = 0; i < KEY_SPACE / 2; i++) {
+            int key = r.nextInt(KEY_SPACE);
+            tree.insert(key, key);
+        }
+    }
+
+    private static long run(IBTree<Integer, Integer> tree, int threads, int seconds, int readPercent) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                Random r = new Random(seed);
+                long count = 0;
+                while (!stop.get()) {
+                    int key = r.nextInt(KEY_SPACE);
+                    int op = r.nextInt(100);
+                    if (op < readPercent) tree.search(key);
+                    else if ((op & 1) == 0) tree.insert(key, key);
+                    else tree.delete(key);
+                    count++;
+                }
+                ops.add(count);
+                done.countDown();
+            }).start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        done.await();
+        return ops.sum();
+    }
+
+    private static <K extends Comparable<K>, V> IBTree<K, V> synchronizedView(IBTree<K, V> tree) {
+        return new IBTree<K, V>() {
+            @Override
+            public synchronized int getMinimumDegree() {
+                return tree.getMinimumDegree();
+            }
+
+            @Override
+            public synchronized IBTreeNode<K, V> getRoot() {
+                return tree.getRoot();
+            }
+
+            @Override
+            public synchronized void insert(K key, V value) {
+                tree.insert(key, value);
+            }
+
+            @Override
+            public synchronized V search(K key) {
+                return tree.search(key);
+            }
+
+            @Override
+            public synchronized boolean delete(K key) {
+                return tree.delete(key);
+            }
+        };
+    }
+}
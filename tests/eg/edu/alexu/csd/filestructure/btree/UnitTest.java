@@ -1,6 +1,13 @@
 package eg.edu.alexu.csd.filestructure.btree;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -18,6 +25,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.stream.Stream;
 
 import javax.management.RuntimeErrorException;
 
@@ -729,6 +737,1246 @@ public class UnitTest {
     }
 
 
+    /**
+     * Test deletion of a missing key does not restructure the tree.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testDeletionNotFoundKeepsStructure() {
+
+        IBTree<Integer, String> btree = (IBTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+
+        try {
+            List<Integer> inp = Arrays.asList(new Integer[]{1, 3, 7, 10, 11, 13, 14, 15, 18, 16, 19, 24, 25, 26, 21, 4, 5, 20, 22, 2, 17, 12, 6});
+            for (int i : inp)
+                btree.insert(i, "Soso" + i);
+
+            List<List<List<?>>> before = new ArrayList<>();
+            traverseBtreePreOrder(btree.getRoot(), 0, before);
+            before = copyLevels(before);
+            Assert.assertFalse(btree.delete(23));
+            Assert.assertFalse(btree.delete(8));
+            List<List<List<?>>> after = new ArrayList<>();
+            traverseBtreePreOrder(btree.getRoot(), 0, after);
+            Assert.assertEquals(before, copyLevels(after));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail to delete in tree", e);
+        }
+    }
+
+
+    /**
+     * Test put, putIfAbsent, computeIfAbsent and merge.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testUpsert() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{2});
+
+        try {
+            for (int i = 0; i < 100; i++)
+                Assert.assertNull(btree.put(i, "Soso" + i));
+            Assert.assertEquals("Soso7", btree.put(7, "Toto7"));
+            Assert.assertEquals("Toto7", btree.search(7));
+            Assert.assertEquals("Toto7", btree.putIfAbsent(7, "Koko7"));
+            Assert.assertNull(btree.putIfAbsent(100, "Soso100"));
+            Assert.assertEquals("Soso100", btree.computeIfAbsent(100, k -> "Koko" + k));
+            Assert.assertEquals("Koko101", btree.computeIfAbsent(101, k -> "Koko" + k));
+            Assert.assertNull(btree.computeIfAbsent(102, k -> null));
+            Assert.assertNull(btree.search(102));
+            Assert.assertEquals("Soso5Toto", btree.merge(5, "Toto", String::concat));
+            Assert.assertEquals("Toto103", btree.merge(103, "Toto103", String::concat));
+            Assert.assertNull(btree.merge(6, "Toto", (a, b) -> null));
+            Assert.assertNull(btree.search(6));
+            if (!verifyBTree(btree.getRoot(), 0, getHeight(btree.getRoot()), 2, btree.getRoot()))
+                Assert.fail();
+        } catch (Throwable e) {
+            TestRunner.fail("Fail to upsert in tree", e);
+        }
+    }
+
+
+    /**
+     * Test bulk loading sorted entries.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBulkLoad() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+
+        try {
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 10000; i++)
+                map.put(2 * i, "Soso" + i);
+            btree.bulkLoad(map.entrySet().iterator(), 1.0);
+            if (!verifyBTree(btree.getRoot(), 0, getHeight(btree.getRoot()), 3, btree.getRoot()))
+                Assert.fail();
+
+            List<Integer> keys = new ArrayList<>();
+            List<String> vals = new ArrayList<>();
+            traverseTreeInorder(btree.getRoot(), keys, vals);
+            Assert.assertEquals(new ArrayList<>(map.keySet()), keys);
+            Assert.assertEquals(new ArrayList<>(map.values()), vals);
+            // leaves are filled completely, only the last ones may be rebalanced
+            IBTreeNode<Integer, String> leftmost = btree.getRoot();
+            while (!leftmost.isLeaf())
+                leftmost = leftmost.getChildren().get(0);
+            Assert.assertEquals(5, leftmost.getNumOfKeys());
+
+            btree.insert(1, "Toto1");
+            Assert.assertTrue(btree.delete(2));
+            Assert.assertEquals("Toto1", btree.search(1));
+            if (!verifyBTree(btree.getRoot(), 0, getHeight(btree.getRoot()), 3, btree.getRoot()))
+                Assert.fail();
+        } catch (Throwable e) {
+            TestRunner.fail("Fail to bulk load tree", e);
+        }
+
+        try {
+            List<Map.Entry<Integer, String>> unsorted = new ArrayList<>();
+            unsorted.add(new AbstractMap.SimpleEntry<>(2, "Soso2"));
+            unsorted.add(new AbstractMap.SimpleEntry<>(1, "Soso1"));
+            ((BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3})).bulkLoad(unsorted.iterator(), 1.0);
+            Assert.fail();
+        } catch (RuntimeErrorException ex) {
+        } catch (Throwable e) {
+            TestRunner.fail("Fail to bulk load tree", e);
+        }
+    }
+
+
+    /**
+     * Test ordered range scans.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRangeScan() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                int key = r.nextInt(100000);
+                btree.insert(key, "Soso" + key);
+                map.put(key, "Soso" + key);
+            }
+            List<Entry<Integer, String>> all = new ArrayList<>();
+            for (Entry<Integer, String> entry : btree)
+                all.add(entry);
+            Assert.assertEquals(new ArrayList<>(map.entrySet()), all);
+            Assert.assertEquals(map.size(), btree.stream().count());
+
+            for (int i = 0; i < 100; i++) {
+                int from = r.nextInt(100000);
+                int to = from + r.nextInt(5000);
+                List<Entry<Integer, String>> ascending = new ArrayList<>();
+                btree.range(from, true, to, false).forEachRemaining(ascending::add);
+                Assert.assertEquals(new ArrayList<>(map.subMap(from, true, to, false).entrySet()), ascending);
+
+                List<Entry<Integer, String>> descending = new ArrayList<>();
+                btree.descendingRange(from, false, to, true).forEachRemaining(descending::add);
+                Assert.assertEquals(new ArrayList<>(map.subMap(from, false, to, true).descendingMap().entrySet()), descending);
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail to scan tree", e);
+        }
+    }
+
+
+    /**
+     * Test the B+Tree variant against a TreeMap.
+     */
+    @Test
+    public void testBPlusTree() {
+
+        BPlusTree<Integer, String> btree = new BPlusTree<>(3);
+
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 100000; i++) {
+                int key = r.nextInt(20000);
+                if (r.nextInt(3) == 0) {
+                    Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                } else {
+                    btree.insert(key, "Soso" + key);
+                    map.putIfAbsent(key, "Soso" + key);
+                }
+            }
+            if (!verifyBTree(btree.getRoot(), 0, getHeight(btree.getRoot()), 3, btree.getRoot()))
+                Assert.fail();
+            for (int key = 0; key < 20000; key++)
+                Assert.assertEquals(map.get(key), btree.search(key));
+
+            List<Entry<Integer, String>> scanned = new ArrayList<>();
+            btree.range(5000, true, 15000, false).forEachRemaining(scanned::add);
+            Assert.assertEquals(new ArrayList<>(map.subMap(5000, 15000).entrySet()), scanned);
+            scanned.clear();
+            btree.descendingRange(null, false, 15000, true).forEachRemaining(scanned::add);
+            Assert.assertEquals(new ArrayList<>(map.headMap(15000, true).descendingMap().entrySet()), scanned);
+
+            IOrderedBTree<Integer, String> created = BTree.newBPlusTree(3);
+            for (Entry<Integer, String> entry : map.entrySet())
+                created.insert(entry.getKey(), entry.getValue());
+            scanned.clear();
+            created.entries().forEachRemaining(scanned::add);
+            Assert.assertEquals(new ArrayList<>(map.entrySet()), scanned);
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in B+ tree", e);
+        }
+    }
+
+
+    /**
+     * Test the concurrent tree with several writer and reader threads.
+     */
+    @Test
+    public void testConcurrentBTree() {
+        hammerConcurrentBTree(BTree.newConcurrentTree(3, false));
+    }
+
+    /**
+     * Test optimistic lock coupling, same workload as the crabbing test.
+     */
+    @Test
+    public void testOptimisticConcurrentBTree() {
+        hammerConcurrentBTree(BTree.newConcurrentTree(3, true));
+    }
+
+    private void hammerConcurrentBTree(IBTree<Integer, String> btree) {
+        try {
+            int threads = 4;
+            List<Thread> workers = new ArrayList<>();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            List<Set<Integer>> owned = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                final Set<Integer> keys = new HashSet<>();
+                owned.add(keys);
+                workers.add(new Thread(() -> {
+                    try {
+                        Random r = new Random(id);
+                        for (int i = 0; i < 50000; i++) {
+                            int key = r.nextInt(10000) * threads + id;
+                            if (r.nextInt(3) == 0) {
+                                Assert.assertEquals(keys.remove(key), btree.delete(key));
+                            } else {
+                                btree.insert(key, "Soso" + key);
+                                keys.add(key);
+                            }
+                            Assert.assertEquals(keys.contains(key) ? "Soso" + key : null, btree.search(key));
+                            btree.search(r.nextInt(10000 * threads));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            for (Thread worker : workers) worker.start();
+            for (Thread worker : workers) worker.join();
+            Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+            if (!verifyBTree(btree.getRoot(), 0, getHeight(btree.getRoot()), 3, btree.getRoot()))
+                Assert.fail();
+            for (Set<Integer> keys : owned)
+                for (int key : keys)
+                    Assert.assertEquals("Soso" + key, btree.search(key));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in concurrent tree", e);
+        }
+    }
+
+    /**
+     * Test that snapshots keep their contents while the tree keeps changing.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSnapshot() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            List<BTree<Integer, String>> snapshots = new ArrayList<>();
+            List<TreeMap<Integer, String>> expected = new ArrayList<>();
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 1000; i++) {
+                    int key = r.nextInt(5000);
+                    if (r.nextBoolean()) {
+                        btree.insert(key, "Soso" + key);
+                        map.put(key, "Soso" + key);
+                    } else {
+                        Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                    }
+                }
+                snapshots.add(btree.snapshot());
+                expected.add(new TreeMap<>(map));
+            }
+            for (int i = 0; i < snapshots.size(); i++) {
+                BTree<Integer, String> snapshot = snapshots.get(i);
+                if (!verifyBTree(snapshot.getRoot(), 0, getHeight(snapshot.getRoot()), 3, snapshot.getRoot()))
+                    Assert.fail();
+                List<Entry<Integer, String>> all = new ArrayList<>();
+                snapshot.entries().forEachRemaining(all::add);
+                Assert.assertEquals(new ArrayList<>(expected.get(i).entrySet()), all);
+            }
+            List<Entry<Integer, String>> all = new ArrayList<>();
+            btree.entries().forEachRemaining(all::add);
+            Assert.assertEquals(new ArrayList<>(map.entrySet()), all);
+
+            try {
+                snapshots.get(0).insert(1, "Soso1");
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in snapshots", e);
+        }
+    }
+
+    /**
+     * Test the tree stored in off-heap pages against a TreeMap, with pages small enough to need overflow pages.
+     */
+    @Test
+    public void testOffHeapPagedBTree() {
+
+        IPagedBTree<Integer, String> btree = BTree.newOffHeapTree(3, 64, 128, Serializers.INTEGER, Serializers.STRING);
+
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 20000; i++) {
+                int key = r.nextInt(3000);
+                if (r.nextInt(3) == 0) {
+                    Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                } else {
+                    btree.insert(key, "Soso" + key);
+                    map.putIfAbsent(key, "Soso" + key);
+                }
+            }
+            // every getRoot() call decodes a new view
+            IBTreeNode<Integer, String> root = btree.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail();
+            for (int key = 0; key < 3000; key++)
+                Assert.assertEquals(map.get(key), btree.search(key));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in off-heap tree", e);
+        } finally {
+            btree.close();
+        }
+    }
+
+    /**
+     * Test the tree stored in a page file behind a small buffer pool, closing and reopening it.
+     */
+    @Test
+    public void testFilePagedBTree() {
+
+        Path file = null;
+        try {
+            file = Files.createTempFile("btree", ".db");
+            Files.delete(file);
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int round = 0; round < 3; round++) {
+                FilePageStore store = new FilePageStore(file, 256, 8);
+                PagedBTree<Integer, String> btree = new PagedBTree<>(4, store, Serializers.INTEGER, Serializers.STRING);
+                for (int key : map.keySet())
+                    Assert.assertEquals(map.get(key), btree.search(key));
+                for (int i = 0; i < 5000; i++) {
+                    int key = r.nextInt(3000);
+                    if (r.nextInt(3) == 0) {
+                        Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                    } else {
+                        btree.insert(key, "Soso" + key);
+                        map.putIfAbsent(key, "Soso" + key);
+                    }
+                }
+                IBTreeNode<Integer, String> root = btree.getRoot();
+                if (!verifyBTree(root, 0, getHeight(root), 4, root))
+                    Assert.fail();
+                Assert.assertTrue(store.getBufferPool().getMisses() > 0);
+                btree.close();
+            }
+            try (IPagedBTree<Integer, String> reopened = BTree.openPaged(file, 4, 256, 8, Serializers.INTEGER, Serializers.STRING)) {
+                for (int key = 0; key < 3000; key++)
+                    Assert.assertEquals(map.get(key), reopened.search(key));
+            }
+            try {
+                BTree.openPaged(file, 3, 256, 8, Serializers.INTEGER, Serializers.STRING);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in file tree", e);
+        } finally {
+            try {
+                if (file != null) Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Test freezing a tree to a file and reading it back through the memory-mapped reader.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFreeze() {
+
+        BTree<String, String> btree = (BTree<String, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+
+        Path file = null;
+        try {
+            file = Files.createTempFile("btree", ".idx");
+            Random r = new Random();
+            TreeMap<String, String> map = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                String key = "Soso" + r.nextInt(100000);
+                btree.insert(key, "Toto" + i);
+                map.putIfAbsent(key, "Toto" + i);
+            }
+            btree.freeze(file, Serializers.STRING, Serializers.STRING);
+            FrozenBTree<String, String> frozen = new FrozenBTree<>(file, Serializers.STRING, Serializers.STRING);
+
+            Assert.assertEquals(map.size(), frozen.size());
+            IBTreeNode<String, String> root = frozen.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail();
+            for (int i = 0; i < 100000; i += 7)
+                Assert.assertEquals(map.get("Soso" + i), frozen.search("Soso" + i));
+            List<Entry<String, String>> range = new ArrayList<>();
+            frozen.range("Soso2", true, "Soso5", false).forEachRemaining(range::add);
+            Assert.assertEquals(new ArrayList<>(map.subMap("Soso2", true, "Soso5", false).entrySet()), range);
+
+            try {
+                frozen.insert("Soso", "Toto");
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+
+            // a write that fails midway leaves the previous file, and the readers mapping it, as they were
+            Serializer<String> failing = new Serializer<String>() {
+                private int written;
+
+                @Override
+                public int sizeOf(String value) {
+                    return Serializers.STRING.sizeOf(value);
+                }
+
+                @Override
+                public void write(String value, ByteBuffer buffer) {
+                    if (++written == 1000) LocalException.throwRunTimeErrorException();
+                    Serializers.STRING.write(value, buffer);
+                }
+
+                @Override
+                public String read(ByteBuffer buffer) {
+                    return Serializers.STRING.read(buffer);
+                }
+            };
+            try {
+                btree.freeze(file, Serializers.STRING, failing);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+            Assert.assertEquals(map.size(), frozen.size());
+            Assert.assertEquals(map.get("Soso2"), frozen.search("Soso2"));
+            IOrderedBTree<String, String> reopened = BTree.openFrozen(file, Serializers.STRING, Serializers.STRING);
+            List<Entry<String, String>> entries = new ArrayList<>();
+            reopened.entries().forEachRemaining(entries::add);
+            Assert.assertEquals(new ArrayList<>(map.entrySet()), entries);
+            String prefix = file.getFileName().toString();
+            try (Stream<Path> files = Files.list(file.getParent())) {
+                Assert.assertFalse(files.anyMatch(f -> f.getFileName().toString().startsWith(prefix)
+                        && f.getFileName().toString().endsWith(".tmp")));
+            }
+
+            // freezing again replaces the file under a reader that still maps the previous one
+            btree.insert("Soso", "Toto");
+            btree.freeze(file, Serializers.STRING, Serializers.STRING);
+            Assert.assertNull(frozen.search("Soso"));
+            Assert.assertEquals(map.size(), frozen.size());
+            Assert.assertEquals("Toto", BTree.openFrozen(file, Serializers.STRING, Serializers.STRING).search("Soso"));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in frozen tree", e);
+        } finally {
+            try {
+                if (file != null) Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+    /**
+     * Test recovery from the write-ahead log after simulated crashes, including a torn and corrupted log tail.
+     */
+    @Test
+    public void testWriteAheadLogRecovery() {
+
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("btree");
+            int keySpace = 500;
+            Map<Integer, String> expected = Collections.synchronizedMap(new HashMap<>());
+
+            // concurrent writers sharing group commits, crash once everything is synced
+            DurableBTree<Integer, String> btree = openDurable(directory, false);
+            List<Thread> workers = new ArrayList<>();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            for (int t = 0; t < 4; t++) {
+                final int id = t;
+                final DurableBTree<Integer, String> tree = btree;
+                workers.add(new Thread(() -> {
+                    try {
+                        Random r = new Random(id);
+                        for (int i = 0; i < 2000; i++) {
+                            int key = r.nextInt(keySpace / 4) * 4 + id;
+                            if (r.nextInt(3) == 0) {
+                                tree.delete(key);
+                                expected.remove(key);
+                            } else {
+                                tree.insert(key, "Soso" + key);
+                                expected.put(key, "Soso" + key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            for (Thread worker : workers) worker.start();
+            for (Thread worker : workers) worker.join();
+            Assert.assertTrue(errors.toString(), errors.isEmpty());
+            btree.sync();
+            btree.crash();
+            btree = openDurable(directory, true);
+            Assert.assertEquals(new TreeMap<>(expected), contents(btree, keySpace));
+
+            // synchronous commits after a checkpoint, crash without syncing
+            btree.checkpoint();
+            Random r = new Random();
+            for (int i = 0; i < 300; i++) {
+                int key = r.nextInt(keySpace);
+                if (btree.delete(key))
+                    expected.remove(key);
+                btree.insert(key + keySpace, "Toto" + key);
+                expected.putIfAbsent(key + keySpace, "Toto" + key);
+            }
+            btree.crash();
+            btree = openDurable(directory, false);
+            Assert.assertEquals(new TreeMap<>(expected), contents(btree, 2 * keySpace));
+
+            // lose and corrupt the end of the log: what is recovered must be a prefix of the operations
+            btree.checkpoint();
+            TreeMap<Integer, String> state = contents(btree, 2 * keySpace);
+            List<Integer> operations = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                int key = r.nextInt(2 * keySpace);
+                boolean removed = r.nextBoolean() ? btree.delete(key) : false;
+                if (!removed) btree.insert(key, "Koko" + i);
+                operations.add(removed ? -key - 1 : key);
+            }
+            btree.sync();
+            btree.crash();
+            Path log = directory.resolve(DurableBTree.LOG_FILE);
+            byte[] bytes = Files.readAllBytes(log);
+            int cut = bytes.length - 1 - r.nextInt(bytes.length / 2);
+            byte[] torn = Arrays.copyOf(bytes, cut);
+            torn[cut - 1 - r.nextInt(8)] ^= 0x5A;
+            Files.write(log, torn);
+            btree = openDurable(directory, false);
+            TreeMap<Integer, String> recovered = contents(btree, 2 * keySpace);
+            boolean prefix = state.equals(recovered);
+            for (int i = 0; i < operations.size() && !prefix; i++) {
+                int operation = operations.get(i);
+                if (operation < 0)
+                    state.remove(-operation - 1);
+                else
+                    state.putIfAbsent(operation, "Koko" + i);
+                prefix = state.equals(recovered);
+            }
+            Assert.assertTrue(prefix);
+            btree.close();
+
+            // reopened through the public factory after a clean close
+            try (IDurableBTree<Integer, String> reopened = BTree.openDurable(directory, 3, Serializers.INTEGER,
+                    Serializers.STRING, 32, 2, true)) {
+                Assert.assertEquals(recovered, contents(reopened, 2 * keySpace));
+                reopened.insert(-1, "Soso");
+                Assert.assertEquals("Soso", reopened.search(-1));
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in write-ahead log recovery", e);
+        } finally {
+            try {
+                if (directory != null)
+                    for (Path file : Files.list(directory).toArray(Path[]::new))
+                        Files.delete(file);
+                if (directory != null) Files.deleteIfExists(directory);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Test that closing the log while writers keep appending commits every record whose append returned.
+     */
+    @Test
+    public void testWriteAheadLogClose() {
+
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("btree");
+            Path file = directory.resolve(DurableBTree.LOG_FILE);
+            for (int round = 0; round < 10; round++) {
+                WriteAheadLog log = new WriteAheadLog(file, 1 << 20, 1000, record -> { });
+                Set<Integer> appended = Collections.synchronizedSet(new HashSet<>());
+                List<Thread> writers = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    final int id = t;
+                    writers.add(new Thread(() -> {
+                        try {
+                            for (int i = id; ; i += 4) {
+                                log.append(ByteBuffer.allocate(Integer.BYTES).putInt(i).array());
+                                appended.add(i);
+                            }
+                        } catch (RuntimeErrorException closed) {
+                        }
+                    }));
+                }
+                for (Thread writer : writers) writer.start();
+                Thread.sleep(20);
+                log.close();
+                for (Thread writer : writers) writer.join();
+
+                Set<Integer> recovered = new HashSet<>();
+                new WriteAheadLog(file, 1, 0, record -> recovered.add(record.getInt())).crash();
+                Assert.assertTrue(recovered.containsAll(appended));
+                Files.delete(file);
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in closing the write-ahead log", e);
+        } finally {
+            try {
+                if (directory != null)
+                    for (Path file : Files.list(directory).toArray(Path[]::new))
+                        Files.delete(file);
+                if (directory != null) Files.deleteIfExists(directory);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Test a String keyed tree storing its keys prefix-compressed, with keys sharing long prefixes and non-ASCII keys.
+     */
+    @Test
+    public void testPrefixCompressedKeys() {
+
+        BTree<String, Integer> btree = BTree.withPrefixCompressedKeys(3);
+        String[] stems = {"typeface", "typefaces", "type", "\u00e9t\u00e9", "\ud83d\ude00", "\uffff", ""};
+        try {
+            Random r = new Random();
+            TreeMap<String, Integer> map = new TreeMap<>();
+            for (int i = 0; i < 20000; i++) {
+                String key = stems[r.nextInt(stems.length)] + Integer.toString(r.nextInt(500), 36);
+                if (r.nextInt(3) == 0) {
+                    Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                } else {
+                    btree.insert(key, i);
+                    map.putIfAbsent(key, i);
+                }
+            }
+            IBTreeNode<String, Integer> root = btree.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail();
+            List<Entry<String, Integer>> entries = new ArrayList<>();
+            btree.entries().forEachRemaining(entries::add);
+            Assert.assertEquals(new ArrayList<>(map.entrySet()), entries);
+            for (String stem : stems)
+                for (int i = 0; i < 600; i++)
+                    Assert.assertEquals(map.get(stem + Integer.toString(i, 36)), btree.search(stem + Integer.toString(i, 36)));
+            Assert.assertNull(btree.search("typ"));
+            Assert.assertNull(btree.search("typefacezzz"));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in prefix-compressed keys", e);
+        }
+    }
+
+    /**
+     * Test trees comparing normalized keys first, with normalizers that tie often.
+     */
+    @Test
+    public void testKeyNormalizer() {
+
+        try {
+            Random r = new Random();
+            List<KeyNormalizer<Integer>> normalizers = Arrays.asList(KeyNormalizers.INTEGER, key -> key >> 5, key -> 0L);
+            for (KeyNormalizer<Integer> normalizer : normalizers) {
+                BTree<Integer, String> btree = BTree.withKeyNormalizer(3, normalizer);
+                TreeMap<Integer, String> map = new TreeMap<>();
+                for (int i = 0; i < 20000; i++) {
+                    int key = r.nextInt(4000) - 2000;
+                    if (r.nextInt(3) == 0) {
+                        Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                    } else {
+                        btree.insert(key, "Soso" + i);
+                        map.putIfAbsent(key, "Soso" + i);
+                    }
+                }
+                IBTreeNode<Integer, String> root = btree.getRoot();
+                if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                    Assert.fail();
+                List<Integer> keys = new ArrayList<>();
+                traverseTreeInorder(root, keys, new ArrayList<>());
+                Assert.assertEquals(new ArrayList<>(map.keySet()), keys);
+                for (int key = -2100; key < 2100; key++)
+                    Assert.assertEquals(map.get(key), btree.search(key));
+            }
+
+            String[] words = {"", "a", "a\u0000", "ab", "abcd", "abcde", "abcdf", "\u00e9", "\uffff", "\ud83d\ude00"};
+            for (String a : words)
+                for (String b : words)
+                    if (a.compareTo(b) < 0)
+                        Assert.assertTrue(KeyNormalizers.STRING.normalize(a) <= KeyNormalizers.STRING.normalize(b));
+            BTree<String, Integer> btree = BTree.withKeyNormalizer(3, KeyNormalizers.STRING);
+            for (int i = 0; i < words.length; i++)
+                btree.insert(words[i], i);
+            for (int i = 0; i < words.length; i++)
+                Assert.assertEquals(Integer.valueOf(i), btree.search(words[i]));
+            Assert.assertNull(btree.search("abc"));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in key normalizer", e);
+        }
+    }
+
+    /**
+     * Test the trees with primitive keys and values against a TreeMap, including emptying them.
+     */
+    @Test
+    public void testPrimitiveBTrees() {
+
+        LongBTree<String> longTree = new LongBTree<>(3);
+        IntBTree<String> intTree = new IntBTree<>(3);
+        LongLongBTree longLongTree = new LongLongBTree(3);
+        IntIntBTree intIntTree = new IntIntBTree(3);
+        try {
+            Random r = new Random();
+            TreeMap<Integer, Integer> map = new TreeMap<>();
+            for (int i = 0; i < 40000; i++) {
+                int key = r.nextInt(2000) - 1000;
+                if (i < 30000 ? r.nextBoolean() : r.nextInt(4) == 0) {
+                    longTree.insert(key * 1000000007L, "Soso" + i);
+                    intTree.insert(key, "Soso" + i);
+                    longLongTree.insert(key * 1000000007L, i);
+                    intIntTree.insert(key, i);
+                    map.putIfAbsent(key, i);
+                } else {
+                    boolean removed = map.remove(key) != null;
+                    Assert.assertEquals(removed, longTree.delete(key * 1000000007L));
+                    Assert.assertEquals(removed, intTree.delete(key));
+                    Assert.assertEquals(removed, longLongTree.delete(key * 1000000007L));
+                    Assert.assertEquals(removed, intIntTree.delete(key));
+                }
+                if (i % 1000 == 0) {
+                    for (int key2 = -1001; key2 <= 1001; key2++) {
+                        Integer value = map.get(key2);
+                        Assert.assertEquals(value == null ? null : "Soso" + value, longTree.search(key2 * 1000000007L));
+                        Assert.assertEquals(value == null ? null : "Soso" + value, intTree.search(key2));
+                        Assert.assertEquals(value == null ? -1 : value, longLongTree.search(key2 * 1000000007L, -1));
+                        Assert.assertEquals(value == null ? -1 : value, intIntTree.search(key2, -1));
+                        Assert.assertEquals(value != null, intIntTree.contains(key2));
+                    }
+                    Assert.assertEquals(map.size(), longTree.size());
+                    Assert.assertEquals(map.size(), intIntTree.size());
+                }
+            }
+            for (int key : map.keySet()) {
+                Assert.assertTrue(longTree.delete(key * 1000000007L));
+                Assert.assertTrue(intTree.delete(key));
+            }
+            Assert.assertEquals(0, longTree.size());
+            Assert.assertNull(intTree.search(map.isEmpty() ? 0 : map.firstKey()));
+            try {
+                longTree.insert(1, null);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in primitive trees", e);
+        }
+    }
+
+    /**
+     * Test rank, select, countRange and size of a tree with order statistics against a TreeMap.
+     */
+    @Test
+    public void testOrderStatistics() {
+
+        BTree<Integer, String> btree = BTree.withOrderStatistics(3);
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 20000; i++) {
+                int key = r.nextInt(5000);
+                if (r.nextInt(3) == 0) {
+                    Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                } else {
+                    btree.insert(key, "Soso" + i);
+                    map.putIfAbsent(key, "Soso" + i);
+                }
+                if (i % 500 == 0) {
+                    Assert.assertEquals(map.size(), btree.size());
+                    List<Integer> keys = new ArrayList<>(map.keySet());
+                    for (int j = 0; j < keys.size(); j += 7)
+                        Assert.assertEquals(keys.get(j), btree.select(j));
+                    for (int key2 = -10; key2 < 5010; key2 += 13) {
+                        Assert.assertEquals(map.headMap(key2).size(), btree.rank(key2));
+                        Assert.assertEquals(map.subMap(key2, true, key2 + 400, false).size(), btree.countRange(key2, true, key2 + 400, false));
+                        Assert.assertEquals(map.tailMap(key2, false).size(), btree.countRange(key2, false, null, true));
+                    }
+                }
+            }
+            try {
+                btree.select(map.size());
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+            try {
+                new BTree<Integer, String>(3).rank(1);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in order statistics", e);
+        }
+    }
+
+    /**
+     * Test batched lookups against single ones, with missing and repeated keys in any order.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSearchAll() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+        try {
+            Assert.assertEquals(Arrays.asList(null, null), btree.searchAll(Arrays.asList(1, 2)));
+            Random r = new Random();
+            for (int i = 0; i < 10000; i++)
+                btree.insert(r.nextInt(20000), "Soso" + i);
+            for (int batch : new int[]{0, 1, 10, 1000, 50000}) {
+                List<Integer> keys = new ArrayList<>();
+                for (int i = 0; i < batch; i++)
+                    keys.add(r.nextInt(21000) - 500);
+                List<String> expected = new ArrayList<>();
+                for (Integer key : keys)
+                    expected.add(btree.search(key));
+                Assert.assertEquals(expected, btree.searchAll(keys));
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in batched search", e);
+        }
+    }
+
+    /**
+     * Test ascending inserts into an append optimized tree, mixed with other modifications, and how full they leave it.
+     */
+    @Test
+    public void testAppendOptimization() {
+
+        BTree<Integer, String> btree = BTree.withAppendOptimization(3);
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 10000; i++) {
+                btree.insert(i, "Soso" + i);
+                map.put(i, "Soso" + i);
+            }
+            IBTreeNode<Integer, String> root = btree.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail("The tree doesn't satisfy the B-Tree properties");
+            int nodes = 0;
+            Queue<IBTreeNode<Integer, String>> queue = new LinkedList<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                IBTreeNode<Integer, String> node = queue.poll();
+                nodes++;
+                if (!node.isLeaf()) queue.addAll(node.getChildren());
+            }
+            // nodes of 4 keys out of 5, instead of 2 or 3 after the usual splits
+            Assert.assertTrue(nodes < 10000 / 4 + 10);
+
+            int next = 10000;
+            for (int i = 0; i < 20000; i++) {
+                int op = r.nextInt(10);
+                if (op < 7) {
+                    next += 1 + r.nextInt(3);
+                    btree.insert(next, "Soso" + next);
+                    map.put(next, "Soso" + next);
+                } else if (op < 9) {
+                    int key = r.nextInt(next);
+                    Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                } else {
+                    int key = r.nextInt(next);
+                    btree.put(key, "Toto" + key);
+                    map.put(key, "Toto" + key);
+                }
+                if (i % 1000 == 0) {
+                    root = btree.getRoot();
+                    if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                        Assert.fail("The tree doesn't satisfy the B-Tree properties");
+                }
+            }
+            for (Map.Entry<Integer, String> entry : map.entrySet())
+                Assert.assertEquals(entry.getValue(), btree.search(entry.getKey()));
+            Iterator<Map.Entry<Integer, String>> entries = btree.entries();
+            for (Integer key : map.keySet())
+                Assert.assertEquals(key, entries.next().getKey());
+            Assert.assertFalse(entries.hasNext());
+            root = btree.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail("The tree doesn't satisfy the B-Tree properties");
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in append optimized inserts", e);
+        }
+    }
+
+    /**
+     * Test deleting ranges of keys and sorted sets of keys against a TreeMap, with a snapshot taken before.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testDeleteRange() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 20000; i++) {
+                int key = r.nextInt(50000);
+                btree.insert(key, "Soso" + key);
+                map.put(key, "Soso" + key);
+            }
+            BTree<Integer, String> snapshot = btree.snapshot();
+            TreeMap<Integer, String> snapshotMap = new TreeMap<>(map);
+            for (int i = 0; i < 20; i++) {
+                int from = r.nextInt(50000);
+                int to = from + r.nextInt(5000);
+                boolean fromInclusive = r.nextBoolean();
+                boolean toInclusive = r.nextBoolean();
+                btree.deleteRange(from, fromInclusive, to, toInclusive);
+                map.subMap(from, fromInclusive, to, toInclusive).clear();
+                IBTreeNode<Integer, String> root = btree.getRoot();
+                if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                    Assert.fail("The tree doesn't satisfy the B-Tree properties");
+            }
+            TreeSet<Integer> keys = new TreeSet<>();
+            for (int i = 10000; i < 30000; i++)
+                if (r.nextInt(10) > 0) keys.add(i);
+            int removed = 0;
+            for (Integer key : keys)
+                if (map.remove(key) != null) removed++;
+            Assert.assertEquals(removed, btree.deleteAll(keys));
+            IBTreeNode<Integer, String> root = btree.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail("The tree doesn't satisfy the B-Tree properties");
+            Iterator<Map.Entry<Integer, String>> entries = btree.entries();
+            for (Map.Entry<Integer, String> entry : map.entrySet())
+                Assert.assertEquals(entry, entries.next());
+            Assert.assertFalse(entries.hasNext());
+
+            btree.deleteRange(null, false, 25000, false);
+            btree.deleteRange(40000, true, null, false);
+            Assert.assertEquals(new ArrayList<>(map.subMap(25000, true, 40000, false).keySet()), keysOf(btree));
+            btree.deleteRange(null, false, null, false);
+            Assert.assertNull(btree.search(30000));
+            Assert.assertEquals(new ArrayList<>(snapshotMap.keySet()), keysOf(snapshot));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in range deletion", e);
+        }
+    }
+
+    /**
+     * Test random insertions and deletions at small minimum degrees against a TreeMap, with trees deep enough that
+     * deletions go through more levels than the path they keep starts with.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRandomInsertionsAndDeletions() {
+
+        try {
+            Random r = new Random();
+            for (int t = 2; t <= 3; t++) {
+                IBTree<Integer, String> btree = (IBTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{t});
+                TreeMap<Integer, String> map = new TreeMap<>();
+                for (int i = 0; i < 100000; i++) {
+                    int key = r.nextInt(1000000);
+                    btree.insert(key, "Soso" + key);
+                    map.putIfAbsent(key, "Soso" + key);
+                }
+                if (t == 2)
+                    Assert.assertTrue(getHeight(btree.getRoot()) > 8);
+                for (int i = 0; i < 100000; i++) {
+                    int key = r.nextInt(1000000);
+                    if (r.nextInt(3) == 0) {
+                        btree.insert(key, "Soso" + key);
+                        map.putIfAbsent(key, "Soso" + key);
+                    } else {
+                        Assert.assertEquals(map.remove(key) != null, btree.delete(key));
+                    }
+                    if (i % 5000 == 0) {
+                        IBTreeNode<Integer, String> root = btree.getRoot();
+                        if (!verifyBTree(root, 0, getHeight(root), t, root))
+                            Assert.fail("The tree doesn't satisfy the B-Tree properties");
+                    }
+                }
+                IBTreeNode<Integer, String> root = btree.getRoot();
+                if (!verifyBTree(root, 0, getHeight(root), t, root))
+                    Assert.fail("The tree doesn't satisfy the B-Tree properties");
+                for (Map.Entry<Integer, String> entry : map.entrySet())
+                    Assert.assertEquals(entry.getValue(), btree.search(entry.getKey()));
+                Assert.assertEquals(new ArrayList<>(map.keySet()), keysOf((BTree<Integer, String>) btree));
+
+                List<Integer> keys = new ArrayList<>(map.keySet());
+                Collections.shuffle(keys, r);
+                for (int key : keys)
+                    Assert.assertTrue(btree.delete(key));
+                root = btree.getRoot();
+                Assert.assertTrue(root == null || root.getNumOfKeys() == 0);
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in random insertions and deletions", e);
+        }
+    }
+
+    /**
+     * Test splitting a tree at a key and concatenating the two halves back, and concatenating unrelated trees.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSplitAtAndConcat() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+        try {
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 20000; i++) {
+                int key = r.nextInt(50000);
+                btree.insert(key, "Soso" + key);
+                map.put(key, "Soso" + key);
+            }
+            for (int i = 0; i < 10; i++) {
+                int key = r.nextInt(52000) - 1000;
+                BTree<Integer, String> upper = btree.splitAt(key);
+                Assert.assertEquals(new ArrayList<>(map.headMap(key).keySet()), keysOf(btree));
+                Assert.assertEquals(new ArrayList<>(map.tailMap(key).keySet()), keysOf(upper));
+                for (BTree<Integer, String> half : Arrays.asList(btree, upper)) {
+                    IBTreeNode<Integer, String> root = half.getRoot();
+                    if (root != null && !verifyBTree(root, 0, getHeight(root), 3, root))
+                        Assert.fail("The tree doesn't satisfy the B-Tree properties");
+                }
+                btree = BTree.concat(btree, upper);
+                Assert.assertEquals(new ArrayList<>(map.keySet()), keysOf(btree));
+                Assert.assertNull(upper.search(map.lastKey()));
+                IBTreeNode<Integer, String> root = btree.getRoot();
+                if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                    Assert.fail("The tree doesn't satisfy the B-Tree properties");
+            }
+            BTree<Integer, String> small = new BTree<>(3);
+            small.insert(60000, "Soso60000");
+            map.put(60000, "Soso60000");
+            btree = BTree.concat(btree, small);
+            Assert.assertEquals(new ArrayList<>(map.keySet()), keysOf(btree));
+            IBTreeNode<Integer, String> root = btree.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail("The tree doesn't satisfy the B-Tree properties");
+            try {
+                BTree<Integer, String> overlapping = new BTree<>(3);
+                overlapping.insert(0, "Soso0");
+                BTree.concat(btree, overlapping);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+            try {
+                BTree.concat(btree, new BTree<Integer, String>(4));
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in split and concatenation", e);
+        }
+    }
+
+    /**
+     * Test merging a tree into another against TreeMap.merge, and that a failing merge leaves the tree as it was.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMergeFrom() {
+
+        BTree<Integer, String> btree = (BTree<Integer, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+        try {
+            btree.mergeFrom(new BTree<>(3), (a, b) -> a + b);
+            Assert.assertNull(btree.getRoot());
+            Random r = new Random();
+            TreeMap<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 10000; i++) {
+                int key = r.nextInt(30000);
+                btree.insert(key, "Soso" + key);
+                map.putIfAbsent(key, "Soso" + key);
+            }
+            BTree<Integer, String> other = new BTree<>(4);
+            TreeMap<Integer, String> otherMap = new TreeMap<>();
+            for (int i = 0; i < 10000; i++) {
+                int key = r.nextInt(40000) - 5000;
+                other.insert(key, "Toto" + key);
+                otherMap.putIfAbsent(key, "Toto" + key);
+            }
+            btree.mergeFrom(other, (a, b) -> a + b);
+            for (Map.Entry<Integer, String> entry : otherMap.entrySet())
+                map.merge(entry.getKey(), entry.getValue(), (a, b) -> a + b);
+            Iterator<Map.Entry<Integer, String>> entries = btree.entries();
+            for (Map.Entry<Integer, String> entry : map.entrySet())
+                Assert.assertEquals(entry, entries.next());
+            Assert.assertFalse(entries.hasNext());
+            Assert.assertEquals(new ArrayList<>(otherMap.keySet()), keysOf(other));
+            IBTreeNode<Integer, String> root = btree.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail("The tree doesn't satisfy the B-Tree properties");
+            try {
+                btree.mergeFrom(other, (a, b) -> null);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+            Assert.assertEquals(new ArrayList<>(map.keySet()), keysOf(btree));
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in merging trees", e);
+        }
+    }
+
+    /**
+     * Test saving a tree and a search engine index to a stream and loading them back.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSaveLoad() {
+
+        BTree<String, String> btree = (BTree<String, String>) TestRunner.getImplementationInstanceForInterface(IBTree.class, new Object[]{3});
+
+        Path page = null;
+        try {
+            Random r = new Random();
+            TreeMap<String, String> map = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                String key = "Soso" + r.nextInt(100000);
+                btree.insert(key, "Toto\u00e9" + i);
+                map.putIfAbsent(key, "Toto\u00e9" + i);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            btree.save(out, Serializers.VARINT_STRING, Serializers.VARINT_STRING);
+            byte[] bytes = out.toByteArray();
+
+            BTree<String, String> loaded = new BTree<>(3);
+            loaded.load(new ByteArrayInputStream(bytes), Serializers.VARINT_STRING, Serializers.VARINT_STRING);
+            IBTreeNode<String, String> root = loaded.getRoot();
+            if (!verifyBTree(root, 0, getHeight(root), 3, root))
+                Assert.fail();
+            Assert.assertEquals(getHeight(btree.getRoot()), getHeight(root));
+            List<Entry<String, String>> entries = new ArrayList<>();
+            loaded.entries().forEachRemaining(entries::add);
+            Assert.assertEquals(new ArrayList<>(map.entrySet()), entries);
+            loaded.insert("Koko", "Lolo");
+            Assert.assertEquals("Lolo", loaded.search("Koko"));
+
+            // empty tree, wrong degree, corruption
+            out.reset();
+            new BTree<String, String>(3).save(out, Serializers.VARINT_STRING, Serializers.VARINT_STRING);
+            BTree<String, String> empty = new BTree<>(3);
+            empty.load(new ByteArrayInputStream(out.toByteArray()), Serializers.VARINT_STRING, Serializers.VARINT_STRING);
+            Assert.assertNull(empty.search("Soso"));
+            try {
+                new BTree<String, String>(4).load(new ByteArrayInputStream(bytes), Serializers.VARINT_STRING, Serializers.VARINT_STRING);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+            for (int i = 0; i < 20; i++) {
+                byte[] corrupted = bytes.clone();
+                corrupted[r.nextInt(corrupted.length)] ^= 1 << r.nextInt(8);
+                try {
+                    new BTree<String, String>(3).load(new ByteArrayInputStream(corrupted), Serializers.VARINT_STRING, Serializers.VARINT_STRING);
+                    Assert.fail();
+                } catch (RuntimeErrorException ex) {
+                }
+            }
+            // a corrupt length fails without allocating what it asks for: a node of 2 GB after the header
+            byte[] huge = Arrays.copyOf(bytes, 7 + 5 + 16);
+            huge[6] = 1;
+            System.arraycopy(new byte[]{-1, -1, -1, -1, 7}, 0, huge, 7, 5);
+            try {
+                new BTree<String, String>(3).load(new ByteArrayInputStream(huge), Serializers.VARINT_STRING, Serializers.VARINT_STRING);
+                Assert.fail();
+            } catch (RuntimeErrorException ex) {
+            }
+            ByteBuffer hugeLength = ByteBuffer.allocate(16);
+            hugeLength.put(new byte[]{-1, -1, -1, -1, 7}).flip();
+            for (Serializer<?> serializer : Arrays.asList(Serializers.VARINT_STRING, Serializers.VARINT_POSTINGS)) {
+                try {
+                    serializer.read(hugeLength.duplicate());
+                    Assert.fail();
+                } catch (RuntimeErrorException ex) {
+                }
+            }
+            hugeLength.clear();
+            hugeLength.putInt(Integer.MAX_VALUE).flip();
+            for (Serializer<?> serializer : Arrays.asList(Serializers.STRING, Serializers.POSTINGS)) {
+                try {
+                    serializer.read(hugeLength.duplicate());
+                    Assert.fail();
+                } catch (RuntimeErrorException ex) {
+                }
+            }
+
+            page = Files.createTempFile("page", ".xml");
+            Files.write(page, Arrays.asList("<root>",
+                    "<doc id=\"1\" url=\"u1\" title=\"t1\">soso toto soso koko</doc>",
+                    "<doc id=\"2\" url=\"u2\" title=\"t2\">toto lolo TOTO</doc>",
+                    "</root>"));
+            SearchEngine searchEngine = new SearchEngine(3);
+            searchEngine.indexWebPage(page.toString());
+            out.reset();
+            searchEngine.save(out);
+            SearchEngine restored = new SearchEngine(3);
+            restored.load(new ByteArrayInputStream(out.toByteArray()));
+            for (String word : new String[]{"soso", "toto", "koko", "lolo", "momo"}) {
+                Set<String> expected = new HashSet<>();
+                for (ISearchResult result : searchEngine.searchByWordWithRanking(word))
+                    expected.add(result.getId() + ":" + result.getRank());
+                Set<String> actual = new HashSet<>();
+                for (ISearchResult result : restored.searchByWordWithRanking(word))
+                    actual.add(result.getId() + ":" + result.getRank());
+                Assert.assertEquals(expected, actual);
+            }
+            restored.deleteWebPage(page.toString());
+            Assert.assertTrue(restored.searchByWordWithRanking("toto").isEmpty());
+        } catch (Throwable e) {
+            TestRunner.fail("Fail in save and load", e);
+        } finally {
+            try {
+                if (page != null) Files.deleteIfExists(page);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     /**
      * Test index web page with null or empty parameter or not found file.
      */
@@ -1104,6 +2352,26 @@ public class UnitTest {
         }
     }
 
+    private DurableBTree<Integer, String> openDurable(Path directory, boolean synchronousCommit) {
+        return new DurableBTree<>(directory, 3, Serializers.INTEGER, Serializers.STRING, 32, 2, synchronousCommit);
+    }
+
+    private TreeMap<Integer, String> contents(IBTree<Integer, String> btree, int keySpace) {
+        TreeMap<Integer, String> map = new TreeMap<>();
+        for (int key = 0; key < keySpace; key++) {
+            String value = btree.search(key);
+            if (value != null) map.put(key, value);
+        }
+        return map;
+    }
+
+    private <K extends Comparable<K>, V> List<K> keysOf(BTree<K, V> btree) {
+        List<K> keys = new ArrayList<>();
+        for (Iterator<Map.Entry<K, V>> entries = btree.entries(); entries.hasNext(); )
+            keys.add(entries.next().getKey());
+        return keys;
+    }
+
     private int getHeight(IBTreeNode<?, ?> node) {
         if (node.isLeaf()) return 0;
 
@@ -1139,6 +2407,17 @@ public class UnitTest {
             traverseTreeInorder(node.getChildren().get(i), keys, vals);
     }
 
+    private List<List<List<?>>> copyLevels(List<List<List<?>>> levels) {
+        List<List<List<?>>> copy = new ArrayList<>();
+        for (List<List<?>> level : levels) {
+            List<List<?>> nodes = new ArrayList<>();
+            for (List<?> keys : level)
+                nodes.add(new ArrayList<>(keys));
+            copy.add(nodes);
+        }
+        return copy;
+    }
+
     private void traverseBtreePreOrder(IBTreeNode<?, ?> node, int level, List<List<List<?>>> keys) {
         if (level >= keys.size())
             keys.add(new ArrayList<>());